@@ -0,0 +1,139 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal micro-benchmark harness: untimed warmup iterations, then timed
+ * iterations of a fixed duration, each reporting the average time per
+ * operation. Results can be written as CSV or JSON to track regressions.
+ */
+class BenchmarkRunner {
+
+  /** One operation, or a fixed number of them, to be timed. */
+  interface Task {
+    /** Run once; the result is consumed so the JIT cannot drop the work. */
+    Object run() throws Exception;
+  }
+
+  /** Measurements of one benchmark. */
+  static class Result {
+    final String name;
+    final String params;
+    final double[] usPerOp;
+
+    Result(String name, String params, double[] usPerOp) {
+      this.name = name;
+      this.params = params;
+      this.usPerOp = usPerOp;
+    }
+
+    double mean() {
+      double sum = 0;
+      for (double v : usPerOp) sum += v;
+      return sum / usPerOp.length;
+    }
+
+    /** Standard deviation over the iterations. */
+    double error() {
+      if (usPerOp.length < 2) {
+        return 0.0;
+      }
+      double mean = mean();
+      double sum = 0;
+      for (double v : usPerOp) sum += (v - mean) * (v - mean);
+      return Math.sqrt(sum / (usPerOp.length - 1));
+    }
+  }
+
+  private final int warmupIterations;
+  private final int iterations;
+  private final long iterationNanos;
+  private final List<Result> results = new ArrayList<Result>();
+
+  /** Sink for task results. */
+  private int sink;
+
+  /**
+   * @param warmupIterations Number of untimed iterations
+   * @param iterations Number of timed iterations
+   * @param iterationMillis Duration of one iteration
+   */
+  BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis) {
+    this.warmupIterations = warmupIterations;
+    this.iterations = Math.max(1, iterations);
+    this.iterationNanos = iterationMillis * 1000000L;
+  }
+
+  /**
+   * Run a benchmark and print its result.
+   *
+   * @param name Name of the benchmark
+   * @param params Parameters of the run, e.g. "docs=10000"
+   * @param opsPerCall Number of operations one call of the task does
+   * @param task The task to time
+   */
+  Result run(String name, String params, int opsPerCall, Task task) throws Exception {
+    for (int i = 0; i < warmupIterations; i++) {
+      iteration(task, opsPerCall);
+    }
+    double[] usPerOp = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      usPerOp[i] = iteration(task, opsPerCall);
+    }
+    Result result = new Result(name, params, usPerOp);
+    results.add(result);
+    System.out.println(String.format(Locale.ROOT, "%-24s %-14s %12.3f +- %8.3f us/op",
+        name, params, result.mean(), result.error()));
+    return result;
+  }
+
+  private double iteration(Task task, int opsPerCall) throws Exception {
+    long calls = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      Object value = task.run();
+      sink += System.identityHashCode(value);
+      calls++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < iterationNanos);
+    return elapsed / 1000.0 / (calls * opsPerCall);
+  }
+
+  List<Result> getResults() {
+    return results;
+  }
+
+  /** Write the results as CSV: benchmark, params, mean, error, unit, iterations. */
+  void writeCsv(Writer out) throws IOException {
+    out.write("benchmark,params,score,error,unit,iterations\n");
+    for (Result r : results) {
+      out.write(String.format(Locale.ROOT, "%s,%s,%.4f,%.4f,us/op,%d\n",
+          r.name, r.params, r.mean(), r.error(), r.usPerOp.length));
+    }
+    out.flush();
+  }
+
+  /** Write the results as a JSON array, one object per benchmark with its raw iteration data. */
+  void writeJson(Writer out) throws IOException {
+    out.write("[\n");
+    for (int i = 0; i < results.size(); i++) {
+      Result r = results.get(i);
+      StringBuilder raw = new StringBuilder();
+      for (int j = 0; j < r.usPerOp.length; j++) {
+        if (j > 0) raw.append(", ");
+        raw.append(String.format(Locale.ROOT, "%.4f", r.usPerOp[j]));
+      }
+      out.write(String.format(Locale.ROOT,
+          "  {\"benchmark\": \"%s\", \"params\": \"%s\", \"mode\": \"avgt\", \"warmupIterations\": %d,"
+          + " \"score\": %.4f, \"scoreError\": %.4f, \"scoreUnit\": \"us/op\", \"rawData\": [%s]}%s\n",
+          r.name, r.params, warmupIterations, r.mean(), r.error(), raw, i + 1 < results.size() ? "," : ""));
+    }
+    out.write("]\n");
+    out.flush();
+  }
+}
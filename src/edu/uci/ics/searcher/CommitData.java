@@ -0,0 +1,54 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+
+/**
+ * User data recorded by {@link IndexFiles} in the commit of an index, such
+ * as how its static priors were computed, read once per reader.
+ */
+class CommitData {
+
+  private static final Map<Object, Map<String, String>> readerData = new WeakHashMap<Object, Map<String, String>>();
+
+  private CommitData() {}
+
+  /**
+   * Value of a key in the commit of a reader, null if none. A reader over
+   * several indexes (shards) has one if all of them have the same.
+   */
+  static String get(IndexReader reader, String key) throws IOException {
+    if (!(reader instanceof DirectoryReader)) {
+      List<IndexReaderContext> children = reader.getContext().children();
+      if (children == null || children.isEmpty()) {
+        return null;
+      }
+      String value = get(children.get(0).reader(), key);
+      for (IndexReaderContext child : children) {
+        String other = get(child.reader(), key);
+        if (other == null || !other.equals(value)) {
+          return null;
+        }
+      }
+      return value;
+    }
+    Object readerKey = reader.getCombinedCoreAndDeletesKey();
+    Map<String, String> data;
+    synchronized (readerData) {
+      data = readerData.get(readerKey);
+    }
+    if (data == null) {
+      data = ((DirectoryReader) reader).getIndexCommit().getUserData();
+      synchronized (readerData) {
+        readerData.put(readerKey, data);
+      }
+    }
+    return data.get(key);
+  }
+}
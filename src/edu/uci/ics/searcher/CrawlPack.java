@@ -0,0 +1,499 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A crawl packed into one file: the url table with the html and text of
+ * every page, so indexing a large crawl does not open and stat millions of
+ * small files.
+ * <p>
+ * The file is written front to back by {@link #main}: a magic number,
+ * then blocks of records, then an offset index. A record is a url, html and
+ * text, each with an int length prefix, and the last modification time of
+ * the page's files. A block is its raw and stored lengths followed by its
+ * records, deflated if {@code -compress} was given and that makes it
+ * smaller. The offset index lists the blocks with their position and
+ * lengths, and the records with their block, offset in the block,
+ * modification time and url. It is followed by its own position and the
+ * magic number again.
+ * <p>
+ * A reader maps the file read-only and loads the offset index. The html
+ * and text of a record are slices of the mapping, without copying; those of
+ * a compressed block are slices of the block inflated once per thread that
+ * reads it, so records should be read in order.
+ */
+class CrawlPack {
+
+  private static final byte[] MAGIC = { 'I', 'C', 'S', 'P', 'A', 'C', 'K', 1 };
+
+  /** Raw bytes per block, unless a single record is larger. */
+  static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  /** Largest mapping; every block is inside one. */
+  private static final long MAX_WINDOW = 1L << 30;
+
+  private final File file;
+  private final ByteBuffer[] windows;
+  private final int[] blockWindow;
+  private final int[] blockStart;
+  private final int[] rawLengths;
+  private final int[] storedLengths;
+  private final String[] urls;
+  private final long[] mtimes;
+  private final int[] recordBlock;
+  private final int[] recordOffset;
+
+  /** Last block inflated by each thread. */
+  private final ThreadLocal<InflatedBlock> inflated = new ThreadLocal<InflatedBlock>();
+
+  private static class InflatedBlock {
+    final int block;
+    final ByteBuffer data;
+
+    InflatedBlock(int block, ByteBuffer data) {
+      this.block = block;
+      this.data = data;
+    }
+  }
+
+  /** True if a path is a crawl pack rather than a directory of source documents. */
+  static boolean isPack(String path) {
+    File file = new File(path);
+    if (!file.isFile() || file.length() < 2 * MAGIC.length + 8) {
+      return false;
+    }
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        byte[] magic = new byte[MAGIC.length];
+        int n = 0;
+        int read;
+        while (n < magic.length && (read = in.read(magic, n, magic.length - n)) > 0) {
+          n += read;
+        }
+        return Arrays.equals(magic, MAGIC);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Open a crawl pack. The file is mapped and its channel closed again, so
+   * there is nothing to close; the mapping goes away with the reader.
+   */
+  static CrawlPack open(File file) throws IOException {
+    return new CrawlPack(file);
+  }
+
+  private CrawlPack(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - 8 - MAGIC.length, 8 + MAGIC.length);
+      long indexPosition = footer.getLong();
+      byte[] magic = new byte[MAGIC.length];
+      footer.get(magic);
+      if (!Arrays.equals(magic, MAGIC) || indexPosition < MAGIC.length || indexPosition > size - 8 - MAGIC.length) {
+        throw new IOException(file + " is not a complete crawl pack");
+      }
+      ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition,
+          size - 8 - MAGIC.length - indexPosition);
+
+      int numBlocks = index.getInt();
+      long[] positions = new long[numBlocks];
+      rawLengths = new int[numBlocks];
+      storedLengths = new int[numBlocks];
+      for (int b = 0; b < numBlocks; b++) {
+        positions[b] = index.getLong();
+        rawLengths[b] = index.getInt();
+        storedLengths[b] = index.getInt();
+      }
+      int numRecords = index.getInt();
+      urls = new String[numRecords];
+      mtimes = new long[numRecords];
+      recordBlock = new int[numRecords];
+      recordOffset = new int[numRecords];
+      for (int r = 0; r < numRecords; r++) {
+        recordBlock[r] = index.getInt();
+        recordOffset[r] = index.getInt();
+        mtimes[r] = index.getLong();
+        urls[r] = utf8(index, index.getInt());
+      }
+
+      // Consecutive blocks share a mapping up to the window size
+      List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+      blockWindow = new int[numBlocks];
+      blockStart = new int[numBlocks];
+      int first = 0;
+      while (first < numBlocks) {
+        long start = positions[first];
+        int last = first;
+        while (last + 1 < numBlocks && end(positions, last + 1) - start <= MAX_WINDOW) {
+          last++;
+        }
+        for (int b = first; b <= last; b++) {
+          blockWindow[b] = mapped.size();
+          blockStart[b] = (int) (positions[b] - start);
+        }
+        mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end(positions, last) - start));
+        first = last + 1;
+      }
+      windows = mapped.toArray(new ByteBuffer[mapped.size()]);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** End of a block in the file. */
+  private long end(long[] positions, int b) {
+    return positions[b] + 8 + storedLengths[b];
+  }
+
+  private static String utf8(ByteBuffer buffer, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /** Number of records. */
+  int size() {
+    return urls.length;
+  }
+
+  int numBlocks() {
+    return rawLengths.length;
+  }
+
+  String url(int record) {
+    return urls[record];
+  }
+
+  /** Last modification time of the files of a record when it was packed. */
+  long mtime(int record) {
+    return mtimes[record];
+  }
+
+  /** Html of a record, a read-only slice. */
+  ByteBuffer html(int record) throws IOException {
+    ByteBuffer buffer = recordBuffer(record);
+    skip(buffer);
+    return slice(buffer);
+  }
+
+  /** Text of a record, a read-only slice. */
+  ByteBuffer text(int record) throws IOException {
+    ByteBuffer buffer = recordBuffer(record);
+    skip(buffer);
+    skip(buffer);
+    return slice(buffer);
+  }
+
+  /** The block of a record, positioned at its url. */
+  private ByteBuffer recordBuffer(int record) throws IOException {
+    ByteBuffer buffer = block(recordBlock[record]);
+    buffer.position(buffer.position() + recordOffset[record]);
+    return buffer;
+  }
+
+  private static void skip(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    buffer.position(buffer.position() + length);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    buffer.limit(buffer.position() + length);
+    return buffer.slice();
+  }
+
+  /** Raw bytes of a block, from its position to its limit. */
+  private ByteBuffer block(int b) throws IOException {
+    ByteBuffer window = windows[blockWindow[b]].duplicate();
+    window.position(blockStart[b] + 8);
+    window.limit(blockStart[b] + 8 + storedLengths[b]);
+    if (storedLengths[b] == rawLengths[b]) {
+      return window.slice();
+    }
+    InflatedBlock last = inflated.get();
+    if (last == null || last.block != b) {
+      // A new array every time: slices of the last one may still be in use
+      byte[] stored = new byte[storedLengths[b]];
+      window.get(stored);
+      byte[] raw = new byte[rawLengths[b]];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(stored);
+        int n = 0;
+        while (n < raw.length && !inflater.finished()) {
+          int read = inflater.inflate(raw, n, raw.length - n);
+          if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          n += read;
+        }
+        if (n != raw.length) {
+          throw new IOException("Block " + b + " of " + file + " is corrupt");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Block " + b + " of " + file + " is corrupt", e);
+      } finally {
+        inflater.end();
+      }
+      last = new InflatedBlock(b, ByteBuffer.wrap(raw).asReadOnlyBuffer());
+      inflated.set(last);
+    }
+    return last.data.duplicate();
+  }
+
+  /** The bytes of a slice, copied. */
+  static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /** Stream over a slice, reading it without copying. */
+  static InputStream stream(final ByteBuffer slice) {
+    final ByteBuffer buffer = slice.duplicate();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        if (!buffer.hasRemaining()) {
+          return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+      }
+
+      @Override
+      public int available() {
+        return buffer.remaining();
+      }
+    };
+  }
+
+  /** Writes a crawl pack front to back. */
+  static class Writer {
+    private final OutputStream out;
+    private final boolean compress;
+    private final int blockSize;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final DataOutputStream index;
+    private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    private final List<long[]> blocks = new ArrayList<long[]>();
+    private long position;
+    private int numRecords;
+    private long rawBytes;
+
+    /**
+     * @param file The pack to write
+     * @param compress True to deflate the blocks
+     * @param blockSize Raw bytes per block
+     */
+    Writer(File file, boolean compress, int blockSize) throws IOException {
+      this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+      this.compress = compress;
+      this.blockSize = blockSize;
+      this.index = new DataOutputStream(indexBytes);
+      out.write(MAGIC);
+      position = MAGIC.length;
+    }
+
+    /** Append a record. */
+    void add(String url, byte[] html, byte[] text, long mtime) throws IOException {
+      byte[] urlBytes = url.getBytes("UTF-8");
+      index.writeInt(blocks.size());
+      index.writeInt(block.size());
+      index.writeLong(mtime);
+      index.writeInt(urlBytes.length);
+      index.write(urlBytes);
+      blockOut.writeInt(urlBytes.length);
+      blockOut.write(urlBytes);
+      blockOut.writeInt(html.length);
+      blockOut.write(html);
+      blockOut.writeInt(text.length);
+      blockOut.write(text);
+      blockOut.writeLong(mtime);
+      numRecords++;
+      if (block.size() >= blockSize) {
+        flushBlock();
+      }
+    }
+
+    private void flushBlock() throws IOException {
+      if (block.size() == 0) {
+        return;
+      }
+      byte[] raw = block.toByteArray();
+      byte[] stored = raw;
+      if (compress) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+          deflater.setInput(raw);
+          deflater.finish();
+          ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 2);
+          byte[] buf = new byte[1 << 16];
+          while (!deflater.finished()) {
+            deflated.write(buf, 0, deflater.deflate(buf));
+          }
+          if (deflated.size() < raw.length) {
+            stored = deflated.toByteArray();
+          }
+        } finally {
+          deflater.end();
+        }
+      }
+      DataOutputStream header = new DataOutputStream(out);
+      header.writeInt(raw.length);
+      header.writeInt(stored.length);
+      out.write(stored);
+      blocks.add(new long[] { position, raw.length, stored.length });
+      position += 8 + stored.length;
+      rawBytes += raw.length;
+      block.reset();
+    }
+
+    /** Write the last block and the offset index, and close the file. */
+    void close() throws IOException {
+      try {
+        flushBlock();
+        DataOutputStream data = new DataOutputStream(out);
+        long indexPosition = position;
+        data.writeInt(blocks.size());
+        for (long[] b : blocks) {
+          data.writeLong(b[0]);
+          data.writeInt((int) b[1]);
+          data.writeInt((int) b[2]);
+        }
+        data.writeInt(numRecords);
+        indexBytes.writeTo(data);
+        data.writeLong(indexPosition);
+        data.write(MAGIC);
+        data.flush();
+        position = indexPosition + data.size();
+      } finally {
+        out.close();
+      }
+    }
+
+    int getNumRecords() {
+      return numRecords;
+    }
+
+    int getNumBlocks() {
+      return blocks.size();
+    }
+
+    long getRawBytes() {
+      return rawBytes;
+    }
+
+    long getFileBytes() {
+      return position;
+    }
+  }
+
+  /** Pack a url table and its Textdata/ and Htmldata/ directories. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.CrawlPack [-docs DOCS_PATH] [-table TABLE_PATH] [-out PACK]"
+        + " [-compress] [-block-size KB]\n\n"
+        + "This packs the pages of the url table, their html from DOCS_PATH/Htmldata and\n"
+        + "their text from DOCS_PATH/Textdata, into one file in table order. Give the pack\n"
+        + "as -docs to IndexFiles, LinkGraph or Duplicates instead of DOCS_PATH and the\n"
+        + "url table. With -compress, blocks of KB kilobytes of records are deflated.";
+    String docsPath = "/Users/yaocheng/Desktop/Index_source_new/";
+    String tablePath = null;
+    String outPath = "crawl.pack";
+    boolean compress = false;
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    for (int i = 0; i < args.length; i++) {
+      if ("-docs".equals(args[i])) {
+        docsPath = args[++i];
+      } else if ("-table".equals(args[i])) {
+        tablePath = args[++i];
+      } else if ("-out".equals(args[i])) {
+        outPath = args[++i];
+      } else if ("-compress".equals(args[i])) {
+        compress = true;
+      } else if ("-block-size".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]) * 1024;
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+    if (tablePath == null) {
+      tablePath = docsPath + "table_url_list.txt";
+    }
+
+    long start = System.nanoTime();
+    int failed = 0;
+    File out = new File(outPath);
+    File tmp = new File(outPath + ".tmp");
+    Writer writer = new Writer(tmp, compress, blockSize);
+    BufferedReader tableIn = new BufferedReader(new InputStreamReader(new FileInputStream(tablePath), "UTF-8"));
+    try {
+      String line;
+      while ((line = tableIn.readLine()) != null) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length < 2) continue;
+        File textFile = new File(docsPath + "Textdata/" + tokens[1]);
+        File htmlFile = new File(docsPath + "Htmldata/" + tokens[1]);
+        try {
+          byte[] text = IndexFiles.readFile(textFile.getPath());
+          byte[] html = IndexFiles.readFile(htmlFile.getPath());
+          writer.add(tokens[0], html, text, Math.max(textFile.lastModified(), htmlFile.lastModified()));
+        } catch (IOException e) {
+          failed++;
+          System.err.println(tokens[0] + ": " + e.getMessage());
+        }
+      }
+    } finally {
+      tableIn.close();
+      writer.close();
+    }
+    // Only a complete pack replaces the old one
+    if (!tmp.renameTo(out) && !(out.delete() && tmp.renameTo(out))) {
+      throw new IOException("Cannot replace " + out);
+    }
+    System.out.println(String.format("Packed %d pages (%d failed) into %s in %.1f s: %d blocks, %.1f MB of records,"
+        + " %.1f MB file", writer.getNumRecords(), failed, out, (System.nanoTime() - start) / 1e9,
+        writer.getNumBlocks(), writer.getRawBytes() / (1024.0 * 1024.0), writer.getFileBytes() / (1024.0 * 1024.0)));
+  }
+}
@@ -0,0 +1,83 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The pages of a crawl to index, in url table order and without the urls
+ * the indexer filters out or repeats, read by position: from the files
+ * under Textdata/ and Htmldata/, or from a {@link CrawlPack}.
+ */
+class CrawlPages {
+
+  private final List<String> urls = new ArrayList<String>();
+  /** File names of the pages, or null for a pack. */
+  private final List<String> files;
+  private final String docsPath;
+  /** Pack of the pages, or null for files. */
+  private final CrawlPack pack;
+  private final List<Integer> records;
+
+  /**
+   * @param docsPath Path of source documents, or of a crawl pack
+   * @param tablePath Path of url file name table, not read for a pack
+   */
+  CrawlPages(String docsPath, String tablePath) throws IOException {
+    this.docsPath = docsPath;
+    Set<String> seen = new HashSet<String>();
+    if (CrawlPack.isPack(docsPath)) {
+      pack = CrawlPack.open(new File(docsPath));
+      files = null;
+      records = new ArrayList<Integer>();
+      for (int r = 0; r < pack.size(); r++) {
+        String url = pack.url(r);
+        if (IndexFiles.filterUrl(url) || !seen.add(url)) continue;
+        urls.add(url);
+        records.add(r);
+      }
+      return;
+    }
+    pack = null;
+    records = null;
+    files = new ArrayList<String>();
+    BufferedReader tableIn = new BufferedReader(new InputStreamReader(new FileInputStream(tablePath), "UTF-8"));
+    try {
+      String line;
+      while ((line = tableIn.readLine()) != null) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length < 2 || IndexFiles.filterUrl(tokens[0]) || !seen.add(tokens[0])) continue;
+        urls.add(tokens[0]);
+        files.add(tokens[1]);
+      }
+    } finally {
+      tableIn.close();
+    }
+  }
+
+  int size() {
+    return urls.size();
+  }
+
+  /** The urls, by position. */
+  List<String> urls() {
+    return Collections.unmodifiableList(urls);
+  }
+
+  byte[] html(int page) throws IOException {
+    return pack != null ? CrawlPack.bytes(pack.html(records.get(page)))
+        : IndexFiles.readFile(docsPath + "Htmldata/" + files.get(page));
+  }
+
+  byte[] text(int page) throws IOException {
+    return pack != null ? CrawlPack.bytes(pack.text(records.get(page)))
+        : IndexFiles.readFile(docsPath + "Textdata/" + files.get(page));
+  }
+}
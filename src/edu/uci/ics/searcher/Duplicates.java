@@ -0,0 +1,329 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exact and near-duplicate pages of the url table, grouped in clusters of
+ * which only one canonical url is indexed; the others are stored with it as
+ * the field {@code aliases}.
+ * <p>
+ * Every page gets a 64-bit SimHash of the 3-word shingles of its text.
+ * Pages with the same text are exact duplicates; pages whose SimHashes differ
+ * in at most {@code -Dindex.dedup.maxDistance} bits (3 by default) are near
+ * duplicates. Near duplicates are found with a banded LSH index: the hash is
+ * cut into maxDistance + 1 bands, so two hashes that close agree on at least
+ * one band and meet in its bucket. Clusters are the transitive closure of
+ * the duplicate pairs. The canonical url of a cluster is the one with the
+ * highest static prior, then the shortest, then the first in the table.
+ */
+class Duplicates {
+
+  /** Stored field of the urls a canonical page stands for. */
+  static final String FIELD = "aliases";
+
+  /** Maximum number of differing SimHash bits of near duplicates, 0 for exact duplicates only. */
+  static final int MAX_DISTANCE = Integer.getInteger("index.dedup.maxDistance", 3);
+
+  /** Words per shingle. */
+  private static final int SHINGLE = 3;
+
+  /** Pages with fewer shingles are too short for their SimHash to mean much. */
+  private static final int MIN_SHINGLES = 8;
+
+  /** Canonical url of each alias. */
+  private final Map<String, String> canonical;
+  /** Aliases of each canonical url, in table order. */
+  private final Map<String, List<String>> aliases;
+
+  final int pages;
+  final int clusters;
+  final int exact;
+  final int near;
+  /** Bytes of text of all pages, and of the aliases. */
+  final long textBytes;
+  final long aliasBytes;
+  final long nanos;
+
+  private Duplicates(Map<String, String> canonical, Map<String, List<String>> aliases, int pages, int exact,
+      int near, long textBytes, long aliasBytes, long nanos) {
+    this.canonical = canonical;
+    this.aliases = aliases;
+    this.pages = pages;
+    this.clusters = aliases.size();
+    this.exact = exact;
+    this.near = near;
+    this.textBytes = textBytes;
+    this.aliasBytes = aliasBytes;
+    this.nanos = nanos;
+  }
+
+  /** True if a url is a duplicate of another page, which is indexed instead. */
+  boolean isAlias(String url) {
+    return canonical.containsKey(url);
+  }
+
+  /** Aliases of a url, empty if it has no duplicates. */
+  List<String> aliasesOf(String url) {
+    List<String> list = aliases.get(url);
+    return list == null ? Collections.<String>emptyList() : list;
+  }
+
+  /** Number of pages left out as duplicates. */
+  int numAliases() {
+    return canonical.size();
+  }
+
+  /**
+   * Fingerprint the pages of a url table and cluster their duplicates.
+   *
+   * @param docsPath Path of source documents, or of a crawl pack
+   * @param tablePath Path of url file name table, not read for a crawl pack
+   * @param prior Static prior choosing the canonical url of a cluster
+   * @param numThreads Number of threads reading and hashing the pages
+   */
+  static Duplicates detect(String docsPath, String tablePath, StaticPrior prior, int numThreads)
+      throws IOException {
+    long start = System.nanoTime();
+    final CrawlPages pages = new CrawlPages(docsPath, tablePath);
+    final List<String> urlList = pages.urls();
+
+    final int n = urlList.size();
+    final long[] simHashes = new long[n];
+    final int[] shingles = new int[n];
+    final int[] lengths = new int[n];
+    final String[] digests = new String[n];
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      int chunk = (n + numThreads - 1) / Math.max(1, numThreads);
+      for (int from = 0; from < n; from += chunk) {
+        final int first = from;
+        final int last = Math.min(n, from + chunk);
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            int[] counts = new int[64];
+            for (int u = first; u < last; u++) {
+              try {
+                byte[] text = pages.text(u);
+                lengths[u] = text.length;
+                int words = simHash(new String(text, "UTF-8"), counts);
+                simHashes[u] = pack(counts);
+                shingles[u] = Math.max(0, words - SHINGLE + 1);
+                // Pages without words are not duplicates of each other
+                digests[u] = words == 0 ? null : IndexManifest.hash(text, "");
+              } catch (IOException e) {
+                System.err.println(urlList.get(u) + ": " + e.getMessage());
+              }
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fingerprinting pages");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+
+    // Union-find of the duplicate pairs
+    int[] parent = new int[n];
+    for (int u = 0; u < n; u++) {
+      parent[u] = u;
+    }
+    int exact = 0;
+    Map<String, Integer> byDigest = new HashMap<String, Integer>();
+    int bands = MAX_DISTANCE + 1;
+    int bandBits = 64 / bands;
+    long bandMask = bandBits == 64 ? -1L : (1L << bandBits) - 1;
+    Map<Long, Integer> buckets = new HashMap<Long, Integer>();
+    int[] next = new int[n * bands];
+    for (int u = 0; u < n; u++) {
+      if (digests[u] == null) continue;
+      Integer same = byDigest.get(digests[u]);
+      if (same != null) {
+        union(parent, same, u);
+        exact++;
+        continue;
+      }
+      byDigest.put(digests[u], u);
+      if (shingles[u] < MIN_SHINGLES || MAX_DISTANCE == 0) continue;
+
+      // Compare with the earlier pages of its buckets, then join them
+      for (int b = 0; b < bands; b++) {
+        long key = ((long) b << 58) ^ ((simHashes[u] >>> (b * bandBits)) & bandMask);
+        Integer head = buckets.get(key);
+        for (int v = head == null ? -1 : head; v >= 0; v = next[v * bands + b]) {
+          if (Long.bitCount(simHashes[u] ^ simHashes[v]) <= MAX_DISTANCE) {
+            union(parent, v, u);
+          }
+        }
+        next[u * bands + b] = head == null ? -1 : head;
+        buckets.put(key, u);
+      }
+    }
+
+    // Canonical url and aliases of each cluster
+    Map<Integer, List<Integer>> members = new HashMap<Integer, List<Integer>>();
+    for (int u = 0; u < n; u++) {
+      int root = find(parent, u);
+      List<Integer> cluster = members.get(root);
+      if (cluster == null) {
+        cluster = new ArrayList<Integer>();
+        members.put(root, cluster);
+      }
+      cluster.add(u);
+    }
+    Map<String, String> canonical = new HashMap<String, String>();
+    Map<String, List<String>> aliases = new HashMap<String, List<String>>();
+    long textBytes = 0;
+    long aliasBytes = 0;
+    for (int u = 0; u < n; u++) {
+      textBytes += lengths[u];
+    }
+    for (List<Integer> cluster : members.values()) {
+      if (cluster.size() < 2) continue;
+      int best = -1;
+      float bestPrior = 0;
+      for (int u : cluster) {
+        float p = prior.compute(urlList.get(u), lengths[u]);
+        if (best < 0 || p > bestPrior
+            || (p == bestPrior && urlList.get(u).length() < urlList.get(best).length())) {
+          best = u;
+          bestPrior = p;
+        }
+      }
+      List<String> list = new ArrayList<String>(cluster.size() - 1);
+      for (int u : cluster) {
+        if (u == best) continue;
+        canonical.put(urlList.get(u), urlList.get(best));
+        list.add(urlList.get(u));
+        aliasBytes += lengths[u];
+      }
+      aliases.put(urlList.get(best), list);
+    }
+    // Every join of two clusters leaves one page out
+    int near = canonical.size() - exact;
+    return new Duplicates(canonical, aliases, n, exact, near, textBytes, aliasBytes, System.nanoTime() - start);
+  }
+
+  /**
+   * Add the SimHash votes of the shingles of a text to 64 bit counters.
+   *
+   * @return Number of words
+   */
+  static int simHash(String text, int[] counts) {
+    Arrays.fill(counts, 0);
+    long[] window = new long[SHINGLE];
+    int words = 0;
+    int len = text.length();
+    int i = 0;
+    while (i < len) {
+      while (i < len && !Character.isLetterOrDigit(text.charAt(i))) {
+        i++;
+      }
+      if (i == len) break;
+      // FNV-1a of the lower-cased word
+      long h = 0xcbf29ce484222325L;
+      while (i < len && Character.isLetterOrDigit(text.charAt(i))) {
+        h = (h ^ Character.toLowerCase(text.charAt(i))) * 0x100000001b3L;
+        i++;
+      }
+      window[words % SHINGLE] = h;
+      words++;
+      if (words < SHINGLE) continue;
+      long shingle = 0;
+      for (int j = words - SHINGLE; j < words; j++) {
+        shingle = shingle * 31 + window[j % SHINGLE];
+      }
+      vote(counts, mix(shingle));
+    }
+    if (words > 0 && words < SHINGLE) {
+      // Too short for a shingle, the words are the only feature
+      long shingle = 0;
+      for (int j = 0; j < words; j++) {
+        shingle = shingle * 31 + window[j];
+      }
+      vote(counts, mix(shingle));
+    }
+    return words;
+  }
+
+  /** SimHash of the counters: the bits voted for by a majority of the shingles. */
+  static long pack(int[] counts) {
+    long hash = 0;
+    for (int bit = 0; bit < 64; bit++) {
+      if (counts[bit] > 0) {
+        hash |= 1L << bit;
+      }
+    }
+    return hash;
+  }
+
+  private static void vote(int[] counts, long hash) {
+    for (int bit = 0; bit < 64; bit++) {
+      counts[bit] += ((hash >>> bit) & 1) != 0 ? 1 : -1;
+    }
+  }
+
+  /** Final mix of MurmurHash3, spreading every input bit over the hash. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static int find(int[] parent, int u) {
+    while (parent[u] != u) {
+      parent[u] = parent[parent[u]];
+      u = parent[u];
+    }
+    return u;
+  }
+
+  /** Join the clusters of two pages. */
+  private static void union(int[] parent, int u, int v) {
+    int a = find(parent, u);
+    int b = find(parent, v);
+    // The root is the earlier page
+    if (a < b) {
+      parent[b] = a;
+    } else if (b < a) {
+      parent[a] = b;
+    }
+  }
+
+  /**
+   * Report of the duplicates and what leaving them out saved.
+   *
+   * @param indexBytes Size of the index built without the duplicates
+   * @param indexNanos Time spent indexing, fingerprinting included
+   */
+  String report(long indexBytes, long indexNanos) {
+    // Assuming the duplicates would have cost what the other pages did
+    long indexed = pages - numAliases();
+    double perText = textBytes == aliasBytes ? 0 : (double) indexBytes / (textBytes - aliasBytes);
+    double perDoc = indexed == 0 ? 0 : (double) Math.max(0, indexNanos - nanos) / indexed;
+    return String.format("Duplicates: %d of %d pages left out (%d exact, %d near) in %d clusters, %.1f MB of text%n"
+        + "Saved about %.1f MB of index and %.1f s of indexing, fingerprinting took %.1f s",
+        numAliases(), pages, exact, near, clusters, aliasBytes / (1024.0 * 1024.0),
+        aliasBytes * perText / (1024.0 * 1024.0), numAliases() * perDoc / 1e9, nanos / 1e9);
+  }
+}
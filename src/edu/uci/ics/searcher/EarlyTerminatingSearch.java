@@ -0,0 +1,402 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Top-k search that stops early in segments whose documents are sorted by
+ * decreasing static prior, on indexes built with {@link IndexProfile#SORTED}.
+ * Other indexes are searched the usual way, so a few tiny segments that
+ * happen to be in order do not take them off the searcher's executor.
+ * <p>
+ * The score of a document is its text score times its prior. With the
+ * default similarity, a term or phrase clause scores at most
+ * {@code sqrt(freq) * norm * weight <= weight}, since the frequency is at
+ * most the field length and the norm at most one over its square root; so
+ * the text score is at most the sum of the clause weights. Once k hits are
+ * collected and that bound times the prior of the next matching document
+ * cannot beat the k-th score, no later document of the segment can either,
+ * and the rest of the segment is skipped. The hits are the same as those of
+ * an exhaustive search; {@code totalHits} only counts the documents scored.
+ * <p>
+ * Queries the bound does not cover, indexes without current stored priors
+ * and unsorted segments are searched exhaustively. With
+ * {@code -Dsearch.earlyTermination.verify=true} every search is checked
+ * against an exhaustive one, and {@code -Dsearch.earlyTermination=false}
+ * turns early termination off.
+ */
+class EarlyTerminatingSearch {
+
+  static final boolean ENABLED = !"false".equals(System.getProperty("search.earlyTermination"));
+  static final boolean VERIFY = Boolean.getBoolean("search.earlyTermination.verify");
+
+  /** Slack for float rounding in the bound. */
+  private static final float BOUND_SLACK = 1.0001f;
+
+  private static final Map<Object, Boolean> sortedSegments = new WeakHashMap<Object, Boolean>();
+
+  static final AtomicLong searches = new AtomicLong();
+  static final AtomicLong terminated = new AtomicLong();
+  static final AtomicLong docsScored = new AtomicLong();
+  static final AtomicLong docsNotVisited = new AtomicLong();
+  static final AtomicLong mismatches = new AtomicLong();
+
+  private EarlyTerminatingSearch() {}
+
+  /**
+   * Search the top hits of a ranking query.
+   *
+   * @param searcher The searcher
+   * @param textQuery The text query
+   * @param ranking The ranking query of the text query, see {@link StaticPrior#rankingQuery}
+   * @param k Number of hits
+   */
+  static TopDocs search(IndexSearcher searcher, Query textQuery, CustomScoreQuery ranking, int k)
+      throws IOException {
+    IndexReader reader = searcher.getIndexReader();
+    if (!ENABLED || k <= 0 || !StaticPrior.isCurrent(reader)
+        || IndexProfile.ofIndex(reader) != IndexProfile.SORTED) {
+      return searcher.search(ranking, k);
+    }
+    Weight weight = searcher.createNormalizedWeight(ranking);
+    // Computed when first needed: queries with fewer than k hits never need it
+    float bound = Float.NaN;
+
+    searches.incrementAndGet();
+    TopHits top = new TopHits(k);
+    long scored = 0;
+    // Document ids after the cutoff, matching or not: counting the matches
+    // would mean walking the postings the cutoff saves
+    long notVisited = 0;
+    boolean stopped = false;
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader segment = leaf.reader();
+      Scorer scorer = weight.scorer(leaf, true, false, segment.getLiveDocs());
+      if (scorer == null) {
+        continue;
+      }
+      float[] priors = isSorted(segment) ? StaticPrior.priors(segment) : null;
+      int doc;
+      while ((doc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if (priors != null && top.isFull()) {
+          if (Float.isNaN(bound)) {
+            bound = textScoreBound(searcher, textQuery, ranking);
+          }
+          // The bound times the prior only bounds the score from above for
+          // a prior that is not negative; from one that is, score the rest
+          if (priors[doc] >= 0 && bound * priors[doc] <= top.minScore()) {
+            // Later documents have lower priors, and ties go to the earlier document
+            notVisited += segment.maxDoc() - doc;
+            stopped = true;
+            break;
+          }
+        }
+        top.add(leaf.docBase + doc, scorer.score());
+        scored++;
+      }
+    }
+    if (stopped) {
+      terminated.incrementAndGet();
+    }
+    docsScored.addAndGet(scored);
+    docsNotVisited.addAndGet(notVisited);
+    SearchMetrics.Trace trace = SearchMetrics.current();
+    if (trace != null) trace.docsNotVisited(notVisited);
+
+    TopDocs results = top.topDocs(scored);
+    if (VERIFY) {
+      verify(searcher, textQuery, ranking, k, results);
+    }
+    return results;
+  }
+
+  /**
+   * The k best hits so far, in a min-heap of primitive arrays. Hits come in
+   * increasing document order, so a hit scoring the same as the worst one
+   * kept is not better, like in {@link TopScoreDocCollector}.
+   */
+  private static class TopHits {
+    private final int[] docs;
+    private final float[] scores;
+    private int size;
+    private float maxScore = Float.NEGATIVE_INFINITY;
+
+    TopHits(int k) {
+      docs = new int[k];
+      scores = new float[k];
+    }
+
+    boolean isFull() {
+      return size == docs.length;
+    }
+
+    float minScore() {
+      return scores[0];
+    }
+
+    void add(int doc, float score) {
+      maxScore = Math.max(maxScore, score);
+      if (size < docs.length) {
+        // Sift up
+        int i = size++;
+        while (i > 0 && worse(score, doc, scores[(i - 1) / 2], docs[(i - 1) / 2])) {
+          docs[i] = docs[(i - 1) / 2];
+          scores[i] = scores[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        docs[i] = doc;
+        scores[i] = score;
+      } else if (score > scores[0]) {
+        siftDown(doc, score, size);
+      }
+    }
+
+    /** Replace the root and restore the heap over the first n entries. */
+    private void siftDown(int doc, float score, int n) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= n) break;
+        if (child + 1 < n && worse(scores[child + 1], docs[child + 1], scores[child], docs[child])) {
+          child++;
+        }
+        if (!worse(scores[child], docs[child], score, doc)) break;
+        docs[i] = docs[child];
+        scores[i] = scores[child];
+        i = child;
+      }
+      docs[i] = doc;
+      scores[i] = score;
+    }
+
+    private static boolean worse(float score, int doc, float otherScore, int otherDoc) {
+      return score < otherScore || (score == otherScore && doc > otherDoc);
+    }
+
+    /** The hits, best first. */
+    TopDocs topDocs(long totalHits) {
+      ScoreDoc[] hits = new ScoreDoc[size];
+      for (int n = size; n > 0; n--) {
+        hits[n - 1] = new ScoreDoc(docs[0], scores[0]);
+        siftDown(docs[n - 1], scores[n - 1], n - 1);
+      }
+      size = 0;
+      return new TopDocs((int) totalHits, hits, hits.length == 0 ? Float.NaN : maxScore);
+    }
+  }
+
+  /** Compare early terminated hits with those of an exhaustive search. */
+  private static boolean verify(IndexSearcher searcher, Query textQuery, Query ranking, int k, TopDocs results)
+      throws IOException {
+    TopDocs exhaustive = searcher.search(ranking, k);
+    boolean same = exhaustive.scoreDocs.length == results.scoreDocs.length;
+    for (int i = 0; same && i < results.scoreDocs.length; i++) {
+      same = exhaustive.scoreDocs[i].doc == results.scoreDocs[i].doc
+          && exhaustive.scoreDocs[i].score == results.scoreDocs[i].score;
+    }
+    if (!same) {
+      mismatches.incrementAndGet();
+      System.err.println("Early termination changed the top " + k + " hits of " + textQuery);
+    }
+    return same;
+  }
+
+  /**
+   * Upper bound of the text score of any document for a ranking query, or
+   * infinity if the query or similarity is not one the bound covers.
+   */
+  static float textScoreBound(IndexSearcher searcher, Query textQuery, CustomScoreQuery ranking) throws IOException {
+    if (searcher.getSimilarity().getClass() != DefaultSimilarity.class) {
+      return Float.POSITIVE_INFINITY;
+    }
+    // Normalization of the ranking query: the prior is strict, so only the
+    // text query counts. Like the searcher, work on the rewritten query
+    Query rewritten = searcher.rewrite(textQuery);
+    float sumOfSquares = ranking.getBoost() * ranking.getBoost() * valueForNormalization(searcher, rewritten);
+    float queryNorm = searcher.getSimilarity().queryNorm(sumOfSquares);
+    if (Float.isInfinite(queryNorm) || Float.isNaN(queryNorm)) {
+      queryNorm = 1.0f;
+    }
+    return BOUND_SLACK * sumOfWeights(searcher, rewritten, queryNorm * ranking.getBoost());
+  }
+
+  /** What {@code Weight.getValueForNormalization()} of a query is. */
+  private static float valueForNormalization(IndexSearcher searcher, Query query) throws IOException {
+    return query.createWeight(searcher).getValueForNormalization();
+  }
+
+  /**
+   * Sum of the weights of the term and phrase clauses of a query, each an
+   * upper bound of the clause score; coordination factors are at most 1.
+   */
+  private static float sumOfWeights(IndexSearcher searcher, Query query, float norm) throws IOException {
+    if (query instanceof BooleanQuery) {
+      float sum = 0;
+      for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+        if (!clause.isProhibited()) {
+          sum += sumOfWeights(searcher, clause.getQuery(), norm * query.getBoost());
+        }
+      }
+      return sum;
+    }
+    if (query instanceof TermQuery || query instanceof PhraseQuery) {
+      if (query.getBoost() == 0) {
+        return 0;
+      }
+      // Normalization value is (idf * boost)^2; the normalized weight is
+      // idf * boost * norm * idf
+      return valueForNormalization(searcher, query) / query.getBoost() * norm;
+    }
+    return Float.POSITIVE_INFINITY;
+  }
+
+  /**
+   * True if the priors of a segment never increase with the document id;
+   * checked per segment of a sorted index, since an update adds segments
+   * in crawl order.
+   */
+  static boolean isSorted(AtomicReader reader) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    synchronized (sortedSegments) {
+      Boolean sorted = sortedSegments.get(key);
+      if (sorted != null) {
+        return sorted;
+      }
+    }
+    float[] priors = StaticPrior.priors(reader);
+    boolean sorted = true;
+    for (int doc = 1; doc < priors.length && sorted; doc++) {
+      sorted = priors[doc] <= priors[doc - 1];
+    }
+    synchronized (sortedSegments) {
+      sortedSegments.put(key, sorted);
+    }
+    return sorted;
+  }
+
+  /** Counters since the JVM started. */
+  static String getStats() {
+    return String.format("%d searches, %d terminated early, %d docs scored, %d doc ids not visited, %d mismatches",
+        searches.get(), terminated.get(), docsScored.get(), docsNotVisited.get(), mismatches.get());
+  }
+
+  /** Run queries with and without early termination and compare. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.EarlyTerminatingSearch [-index INDEX_PATH] -queries FILE [-k K]"
+        + " [-rounds N]\n\n"
+        + "Runs every query of FILE (one per line) with early termination and exhaustively,\n"
+        + "reports the document ids not visited and the time of both, and checks the hits are the same.";
+    String index = SearchFiles.DEFAULT_INDEX;
+    String queryFile = null;
+    int k = 5;
+    int rounds = 3;
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals(args[i])) {
+        index = args[++i];
+      } else if ("-queries".equals(args[i])) {
+        queryFile = args[++i];
+      } else if ("-k".equals(args[i])) {
+        k = Integer.parseInt(args[++i]);
+      } else if ("-rounds".equals(args[i])) {
+        rounds = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+    if (queryFile == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    List<String> queries = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(queryFile), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.trim().length() > 0) {
+          queries.add(line.trim());
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(index)));
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      if (!StaticPrior.isCurrent(reader)) {
+        System.out.println("The index has no current static priors, every search is exhaustive");
+      }
+      int sortedSegmentCount = 0;
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        if (isSorted(leaf.reader())) sortedSegmentCount++;
+      }
+      System.out.println(sortedSegmentCount + " of " + reader.leaves().size() + " segments sorted by prior");
+
+      long earlyNanos = 0;
+      long exhaustiveNanos = 0;
+      int same = 0;
+      for (int round = 0; round < rounds; round++) {
+        for (String q : queries) {
+          Query textQuery = SearchFiles.myBooleanQuery(reader, q);
+          CustomScoreQuery ranking = StaticPrior.rankingQuery(reader, textQuery);
+          // Alternate which runs first, the second one finds the terms cached
+          long t = System.nanoTime();
+          TopDocs early = round % 2 == 0 ? search(searcher, textQuery, ranking, k) : null;
+          long t1 = System.nanoTime();
+          searcher.search(ranking, k);
+          long t2 = System.nanoTime();
+          if (early == null) {
+            early = search(searcher, textQuery, ranking, k);
+          }
+          long t3 = System.nanoTime();
+          if (round > 0) {
+            // The first round warms up
+            earlyNanos += (t1 - t) + (t3 - t2);
+            exhaustiveNanos += t2 - t1;
+          } else if (verify(searcher, textQuery, ranking, k, early)) {
+            same++;
+          }
+        }
+      }
+      System.out.println(getStats());
+      System.out.println(String.format("%d of %d queries with the same top %d hits", same, queries.size(), k));
+      if (rounds > 1) {
+        int n = (rounds - 1) * queries.size();
+        System.out.println(String.format("Mean latency: %.3f ms early terminated, %.3f ms exhaustive",
+            earlyNanos / 1e6 / n, exhaustiveNanos / 1e6 / n));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
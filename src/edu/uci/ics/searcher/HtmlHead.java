@@ -0,0 +1,427 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.jsoup.nodes.Entities;
+
+/**
+ * What the indexer needs from the head of a html page: title, robots
+ * directives, meta keywords/description and canonical link.
+ * <p>
+ * The page is read in a single streaming pass that stops at {@code </head>},
+ * at {@code <body>} or after {@link #DEFAULT_BYTE_LIMIT} bytes, without
+ * building a DOM. Script, style and comment contents are skipped.
+ */
+public class HtmlHead {
+
+  /** Maximum number of bytes read from a page. */
+  public static final int DEFAULT_BYTE_LIMIT = 128 * 1024;
+
+  /** Head of a page that has none, or cannot be read. */
+  static final HtmlHead EMPTY = new HtmlHead();
+
+  private String title = "";
+  private String robots;
+  private String keywords;
+  private String description;
+  private String canonical;
+  private long bytesRead;
+
+  private HtmlHead() {}
+
+  /** Page title with whitespace normalized, empty if there is none. */
+  public String getTitle() {
+    return title;
+  }
+
+  /** Content of the first {@code <meta name=robots>}, or null. */
+  public String getRobots() {
+    return robots;
+  }
+
+  /** Content of the first {@code <meta name=keywords>}, or null. */
+  public String getKeywords() {
+    return keywords;
+  }
+
+  /** Content of the first {@code <meta name=description>}, or null. */
+  public String getDescription() {
+    return description;
+  }
+
+  /** Href of the first {@code <link rel=canonical>}, or null. */
+  public String getCanonical() {
+    return canonical;
+  }
+
+  /** Number of bytes read from the page. */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /** True unless the robots directives contain noindex or nofollow. */
+  public boolean toFollow() {
+    if (robots == null) {
+      return true;
+    }
+    String content = robots.toLowerCase();
+    return content.indexOf("nofollow") < 0 && content.indexOf("noindex") < 0;
+  }
+
+  /**
+   * Read the head of a UTF-8 html file.
+   *
+   * @param filepath Path of the html file
+   * @throws IOException If the file cannot be read
+   */
+  public static HtmlHead read(String filepath) throws IOException {
+    return read(filepath, DEFAULT_BYTE_LIMIT);
+  }
+
+  /**
+   * Read the head of a UTF-8 html file.
+   *
+   * @param filepath Path of the html file
+   * @param byteLimit Maximum number of bytes to read
+   * @throws IOException If the file cannot be read
+   */
+  public static HtmlHead read(String filepath, int byteLimit) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(filepath), 8192);
+    try {
+      return read(in, byteLimit);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Read the head of a UTF-8 html stream, leaving the stream open. */
+  public static HtmlHead read(InputStream in, int byteLimit) throws IOException {
+    Scanner scanner = new Scanner(in, byteLimit);
+    HtmlHead head = new HtmlHead();
+    scanner.scan(head);
+    head.bytesRead = scanner.pos;
+    return head;
+  }
+
+  /** Byte level scanner; tag and attribute names are ASCII, so UTF-8 needs no decoding until values are taken. */
+  private static class Scanner {
+    private final InputStream in;
+    private final int limit;
+    private int pos;
+    private int pushback = -1;
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+
+    Scanner(InputStream in, int limit) {
+      this.in = in;
+      this.limit = limit;
+    }
+
+    private int next() throws IOException {
+      if (pushback >= 0) {
+        int b = pushback;
+        pushback = -1;
+        return b;
+      }
+      if (pos >= limit) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        pos++;
+      }
+      return b;
+    }
+
+    private void unread(int b) {
+      pushback = b;
+    }
+
+    void scan(HtmlHead head) throws IOException {
+      boolean seenTitle = false;
+      int b;
+      while ((b = next()) >= 0) {
+        if (b != '<') continue;
+
+        b = next();
+        if (b == '!') {
+          if (skipMarkup()) continue;
+          return;
+        }
+        if (b < 0) return;
+        boolean closing = b == '/';
+        if (!closing) unread(b);
+        String name = readName();
+        if (name.length() == 0) continue;
+
+        if (closing) {
+          skipTo('>');
+          if (name.equals("head") || name.equals("html")) return;
+          continue;
+        }
+        if (name.equals("body")) {
+          return;
+        }
+
+        Attributes attrs = readAttributes();
+        if (name.equals("title") && !seenTitle) {
+          seenTitle = true;
+          if (!attrs.selfClosed) {
+            head.title = normalizeWhitespace(decodeEntities(readRawText("title")));
+          }
+        } else if (name.equals("meta")) {
+          String metaName = attrs.name;
+          if (metaName != null && attrs.content != null) {
+            if (metaName.equalsIgnoreCase("robots") && head.robots == null) {
+              head.robots = attrs.content;
+            } else if (metaName.equalsIgnoreCase("keywords") && head.keywords == null) {
+              head.keywords = attrs.content;
+            } else if (metaName.equalsIgnoreCase("description") && head.description == null) {
+              head.description = attrs.content;
+            }
+          }
+        } else if (name.equals("link")) {
+          if (attrs.rel != null && attrs.rel.equalsIgnoreCase("canonical") && attrs.href != null
+              && head.canonical == null) {
+            head.canonical = attrs.href.trim();
+          }
+        } else if ((name.equals("script") || name.equals("style")) && !attrs.selfClosed) {
+          readRawText(name);
+        }
+      }
+    }
+
+    /** Skip a comment, doctype or CDATA section, after "<!". */
+    private boolean skipMarkup() throws IOException {
+      int b = next();
+      if (b == '-') {
+        b = next();
+        if (b == '-') {
+          // Comment, skip to "-->"
+          int dashes = 0;
+          while ((b = next()) >= 0) {
+            if (b == '>' && dashes >= 2) return true;
+            dashes = (b == '-') ? dashes + 1 : 0;
+          }
+          return false;
+        }
+      }
+      if (b < 0) return false;
+      return skipTo('>');
+    }
+
+    private boolean skipTo(int c) throws IOException {
+      int b;
+      while ((b = next()) >= 0) {
+        if (b == c) return true;
+      }
+      return false;
+    }
+
+    /** Read a lower-cased tag or attribute name. */
+    private String readName() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      int b;
+      while ((b = next()) >= 0) {
+        if (isNameChar(b)) {
+          sb.append((char) Character.toLowerCase(b));
+        } else {
+          unread(b);
+          break;
+        }
+      }
+      return sb.toString();
+    }
+
+    private static boolean isNameChar(int b) {
+      return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+          || b == '-' || b == '_' || b == ':';
+    }
+
+    private static boolean isSpace(int b) {
+      return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /** Read the attributes of a start tag, up to and including '>'. */
+    private Attributes readAttributes() throws IOException {
+      Attributes attrs = new Attributes();
+      while (true) {
+        int b = next();
+        while (isSpace(b)) b = next();
+        if (b < 0 || b == '>') return attrs;
+        if (b == '/') {
+          int c = next();
+          if (c == '>') {
+            attrs.selfClosed = true;
+            return attrs;
+          }
+          unread(c);
+          continue;
+        }
+        unread(b);
+        String name = readName();
+        if (name.length() == 0) {
+          // Junk character, drop it
+          next();
+          continue;
+        }
+        b = next();
+        while (isSpace(b)) b = next();
+        String value = null;
+        if (b == '=') {
+          value = readValue();
+        } else {
+          unread(b);
+        }
+        if (value != null) {
+          attrs.set(name, decodeEntities(value));
+        }
+      }
+    }
+
+    private String readValue() throws IOException {
+      int b = next();
+      while (isSpace(b)) b = next();
+      buf.reset();
+      if (b == '"' || b == '\'') {
+        int quote = b;
+        while ((b = next()) >= 0 && b != quote) {
+          buf.write(b);
+        }
+      } else {
+        while (b >= 0 && !isSpace(b) && b != '>') {
+          buf.write(b);
+          b = next();
+        }
+        unread(b);
+      }
+      return utf8(buf);
+    }
+
+    /** Read text up to the closing tag of a raw text element, consuming the closing tag. */
+    private String readRawText(String tag) throws IOException {
+      buf.reset();
+      int b;
+      while ((b = next()) >= 0) {
+        if (b != '<') {
+          buf.write(b);
+          continue;
+        }
+        int c = next();
+        if (c != '/') {
+          buf.write(b);
+          unread(c);
+          continue;
+        }
+        String name = readName();
+        if (name.equals(tag)) {
+          skipTo('>');
+          break;
+        }
+        buf.write('<');
+        buf.write('/');
+        for (int i = 0; i < name.length(); i++) {
+          buf.write(name.charAt(i));
+        }
+      }
+      return utf8(buf);
+    }
+
+    private static String utf8(ByteArrayOutputStream buf) {
+      try {
+        return buf.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** The attributes of a tag the extractor looks at. */
+  private static class Attributes {
+    String name;
+    String content;
+    String rel;
+    String href;
+    boolean selfClosed;
+
+    void set(String attr, String value) {
+      if (attr.equals("name") && name == null) {
+        name = value;
+      } else if (attr.equals("content") && content == null) {
+        content = value;
+      } else if (attr.equals("rel") && rel == null) {
+        rel = value;
+      } else if (attr.equals("href") && href == null) {
+        href = value;
+      }
+    }
+  }
+
+  /** Collapse runs of whitespace to single spaces and trim. */
+  static String normalizeWhitespace(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    boolean space = false;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+        space = true;
+      } else {
+        if (space && sb.length() > 0) {
+          sb.append(' ');
+        }
+        space = false;
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Decode numeric and named character references, with jsoup's table of names. */
+  static String decodeEntities(String s) {
+    int amp = s.indexOf('&');
+    if (amp < 0) {
+      return s;
+    }
+    StringBuilder sb = new StringBuilder(s.length());
+    sb.append(s, 0, amp);
+    int i = amp;
+    while (i < s.length()) {
+      char c = s.charAt(i);
+      int semi = c == '&' ? s.indexOf(';', i) : -1;
+      if (semi < 0 || semi - i > 10) {
+        sb.append(c);
+        i++;
+        continue;
+      }
+      String ref = s.substring(i + 1, semi);
+      int cp = -1;
+      try {
+        if (ref.startsWith("#x") || ref.startsWith("#X")) {
+          cp = Integer.parseInt(ref.substring(2), 16);
+        } else if (ref.startsWith("#")) {
+          cp = Integer.parseInt(ref.substring(1));
+        } else if (ref.equals("apos")) {
+          cp = '\'';
+        } else if (Entities.isNamedEntity(ref)) {
+          // The named references jsoup knows, so titles decode as they did
+          // when the head was parsed with jsoup
+          cp = Entities.getCharacterByName(ref);
+        }
+      } catch (NumberFormatException e) {
+        cp = -1;
+      }
+      if (cp >= 0 && Character.isValidCodePoint(cp)) {
+        sb.appendCodePoint(cp);
+        i = semi + 1;
+      } else {
+        sb.append(c);
+        i++;
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,100 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.select.Elements;
+
+/**
+ * Compares the streaming {@link HtmlHead} extractor with the former jsoup
+ * based {@code getTitle} and {@code toFollow}, which parsed every page twice
+ * into a full DOM. Reports bytes read, time and how often both agree.
+ * <p>
+ * Usage: {@code java edu.uci.ics.searcher.HtmlHeadBenchmark HTML_DIR [MAX_FILES]}
+ */
+public class HtmlHeadBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: java edu.uci.ics.searcher.HtmlHeadBenchmark HTML_DIR [MAX_FILES]");
+      System.exit(1);
+    }
+    File[] files = new File(args[0]).listFiles();
+    if (files == null) {
+      System.err.println("Not a directory: " + args[0]);
+      System.exit(1);
+    }
+    Arrays.sort(files);
+    int max = args.length > 1 ? Integer.parseInt(args[1]) : files.length;
+    files = Arrays.copyOf(files, Math.min(max, files.length));
+
+    // Warm up both, then measure
+    runJsoup(files, null);
+    runStreaming(files, null);
+
+    String[] jsoupTitles = new String[files.length];
+    long start = System.nanoTime();
+    long jsoupBytes = runJsoup(files, jsoupTitles);
+    long jsoupNanos = System.nanoTime() - start;
+
+    String[] titles = new String[files.length];
+    start = System.nanoTime();
+    long bytes = runStreaming(files, titles);
+    long nanos = System.nanoTime() - start;
+
+    int same = 0;
+    for (int i = 0; i < files.length; i++) {
+      if (jsoupTitles[i].equals(titles[i])) {
+        same++;
+      } else if (args.length > 2) {
+        System.out.println(files[i] + ": \"" + jsoupTitles[i] + "\" vs \"" + titles[i] + "\"");
+      }
+    }
+
+    System.out.println(files.length + " files");
+    System.out.println(String.format("jsoup:     %12d bytes read %10.1f ms %8.1f us/file",
+        jsoupBytes, jsoupNanos / 1e6, jsoupNanos / 1e3 / files.length));
+    System.out.println(String.format("streaming: %12d bytes read %10.1f ms %8.1f us/file",
+        bytes, nanos / 1e6, nanos / 1e3 / files.length));
+    System.out.println(String.format("titles and robots agree on %d of %d files", same, files.length));
+  }
+
+  /** The former way: one full parse for the title and one for robots. */
+  private static long runJsoup(File[] files, String[] titles) {
+    long bytes = 0;
+    for (int i = 0; i < files.length; i++) {
+      String title = "";
+      boolean follow = true;
+      try {
+        Document doc = Jsoup.parse(files[i], "UTF-8");
+        title = doc.title();
+        doc = Jsoup.parse(files[i], "UTF-8");
+        Elements meta = doc.head().select("meta[name=robots]");
+        if (!meta.isEmpty()) {
+          String content = meta.first().attr("content").toLowerCase();
+          follow = content.indexOf("nofollow") < 0 && content.indexOf("noindex") < 0;
+        }
+      } catch (Exception e) {
+      }
+      bytes += 2 * files[i].length();
+      if (titles != null) {
+        titles[i] = title + "|" + follow;
+      }
+    }
+    return bytes;
+  }
+
+  private static long runStreaming(File[] files, String[] titles) {
+    long bytes = 0;
+    for (int i = 0; i < files.length; i++) {
+      HtmlHead head = HtmlParser.parseHead(files[i].getPath());
+      bytes += head.getBytesRead();
+      if (titles != null) {
+        titles[i] = head.getTitle() + "|" + head.toFollow();
+      }
+    }
+    return bytes;
+  }
+}
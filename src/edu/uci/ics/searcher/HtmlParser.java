@@ -3,7 +3,6 @@ package edu.uci.ics.searcher;
 import org.jsoup.*;
 import org.jsoup.nodes.*;
 import org.jsoup.select.Elements;
-import java.io.File;
 import java.util.*;
 
 public class HtmlParser {
@@ -29,30 +28,32 @@ public class HtmlParser {
       //System.out.println(doc.title());
   }
   
-  public static boolean toFollow(String filepath) {
+  /**
+   * Read the head of a html file, see {@link HtmlHead}. A file that cannot
+   * be read has an empty head.
+   */
+  public static HtmlHead parseHead(String filepath) {
     try {
-      Document doc = Jsoup.parse(new File(filepath), "UTF-8");
-      Elements meta = doc.head().select("meta[name=robots]");
-      if (meta.isEmpty()) {
-        return true;
-      } else {
-        String content = meta.first().attr("content").toLowerCase();
-        if (content.indexOf("nofollow") >= 0 || content.indexOf("noindex") >= 0) {
-          return false;
-        }
-      }
+      return HtmlHead.read(filepath);
     } catch(Exception e) {
+      return HtmlHead.EMPTY;
     }
-    return true;
   }
-  
-  public static String getTitle(String filepath) {
-    String title = "";
+
+  /** Read the head of the html of a crawl pack record, see {@link CrawlPack#html(int)}. */
+  public static HtmlHead parseHead(java.nio.ByteBuffer html) {
     try {
-      Document doc = Jsoup.parse(new File(filepath), "UTF-8");
-      title = doc.title();
+      return HtmlHead.read(CrawlPack.stream(html), HtmlHead.DEFAULT_BYTE_LIMIT);
     } catch(Exception e) {
+      return HtmlHead.EMPTY;
     }
-    return title;
+  }
+  
+  public static boolean toFollow(String filepath) {
+    return parseHead(filepath).toFollow();
+  }
+  
+  public static String getTitle(String filepath) {
+    return parseHead(filepath).getTitle();
   }
 }
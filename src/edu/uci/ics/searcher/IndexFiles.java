@@ -21,16 +21,17 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatDocValuesField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.document.LongField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import java.io.BufferedReader;
@@ -39,7 +40,17 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** Index all text files under a directory.
  * <p>
@@ -52,6 +63,23 @@ public class IndexFiles {
 
   /** Index all text files under a directory. */
   public static void main(String[] args) {
+    String usage = "java edu.uci.ics.searcher.IndexFiles"
+                 + " [-index INDEX_PATH] [-docs DOCS_PATH] [-table TABLE_PATH] [-threads N] [-update]"
+                 + " [-profile bulk-build|incremental|read-optimized|sorted] [-links GRAPH_FILE]"
+                 + " [-shards N] [-shard-by url|host] [-dedup] [-shingles] [-snippets] [-suggest]\n\n"
+                 + "This indexes the pages listed in the url table, reading their text from\n"
+                 + "DOCS_PATH/Textdata and their html from DOCS_PATH/Htmldata, or all of them\n"
+                 + "from DOCS_PATH if it is a crawl pack (see CrawlPack). With -links, the\n"
+                 + "PageRank of the pages is read from GRAPH_FILE, or computed from the links of\n"
+                 + "the html and saved there if the file does not exist. With -shards, the pages\n"
+                 + "are split by the hash of their url or host into N indexes, INDEX_PATH/shard-0\n"
+                 + "to shard-N-1, built in parallel. With -dedup, only one page of each group of\n"
+                 + "exact or near duplicates is indexed, with the urls of the others. With\n"
+                 + "-shingles, word bigrams of contents and title are indexed too, so two-word\n"
+                 + "phrases are searched as single terms. With -snippets, the contents get term\n"
+                 + "vectors and a compressed stored copy, for snippets of the hits. With -suggest,\n"
+                 + "a dictionary of query completions is built from the titles and frequent\n"
+                 + "phrases of the pages and saved in INDEX_PATH/" + Suggester.FILE + ".";
     
     // Safety lock
     boolean run = true;
@@ -67,43 +95,167 @@ public class IndexFiles {
     String docsPath = "/Users/yaocheng/Desktop/Index_source_new/";
     // Set url table file name
     String tablePath = "/Users/yaocheng/Desktop/Index_source_new/table_url_list.txt";
+    // Number of threads reading, parsing and adding documents
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    // Directory and writer settings, by default bulk-build for a new index
+    // and incremental for an update
+    IndexProfile profile = null;
+    // Link graph file, null to index without links
+    String linksPath = null;
+    // Number of shards, 0 for a single index; shard by url or host
+    int numShards = 0;
+    boolean shardByHost = false;
+    // True to index one page per group of duplicates
+    boolean dedup = false;
+    // True to index word bigram fields
+    boolean shingles = false;
+    // True to index term vectors and a stored copy of the contents
+    boolean snippets = false;
+    // True to build the query completion dictionary
+    boolean suggest = false;
+    
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-docs".equals(args[i])) {
+        docsPath = args[i+1];
+        i++;
+      } else if ("-table".equals(args[i])) {
+        tablePath = args[i+1];
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        numThreads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-update".equals(args[i])) {
+        create = false;
+      } else if ("-profile".equals(args[i])) {
+        profile = IndexProfile.forName(args[i+1]);
+        i++;
+      } else if ("-links".equals(args[i])) {
+        linksPath = args[i+1];
+        i++;
+      } else if ("-shards".equals(args[i])) {
+        numShards = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-shard-by".equals(args[i])) {
+        if (!"host".equals(args[i+1]) && !"url".equals(args[i+1])) {
+          System.err.println("Usage: " + usage);
+          System.exit(1);
+        }
+        shardByHost = "host".equals(args[i+1]);
+        i++;
+      } else if ("-dedup".equals(args[i])) {
+        dedup = true;
+      } else if ("-shingles".equals(args[i])) {
+        shingles = true;
+      } else if ("-snippets".equals(args[i])) {
+        snippets = true;
+      } else if ("-suggest".equals(args[i])) {
+        suggest = true;
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+    
+    if (profile == null) {
+      profile = create ? IndexProfile.BULK_BUILD : IndexProfile.INCREMENTAL;
+    }
+    if (profile.isSortedByPrior() && !create) {
+      System.err.println("The " + profile.getName() + " profile needs a full build, not -update");
+      System.exit(1);
+    }
+    
     // Start building index
     Date start = new Date();
     try {
-      System.out.println("Indexing to directory '" + indexPath + "'...");
+      System.out.println("Indexing to directory '" + indexPath + "' with profile " + profile
+          + (numShards > 0 ? " in " + numShards + " shards" : "") + "...");
+
+      // Links and PageRank of the pages, extracted from the html first if
+      // they were not saved before
+      LinkGraph links = null;
+      if (linksPath != null) {
+        links = LinkGraph.loadOrBuild(new File(linksPath), docsPath, tablePath, numThreads);
+      }
 
-      Directory dir = FSDirectory.open(new File(indexPath));
-      Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40); // use standard analyzer
-      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, analyzer);
+      // Duplicates of the pages, whichever shard they are in
+      long indexStart = System.nanoTime();
+      Duplicates duplicates = null;
+      if (dedup) {
+        StaticPrior prior = links == null ? StaticPrior.current() : StaticPrior.current().withLinks(links);
+        duplicates = Duplicates.detect(docsPath, tablePath, prior, numThreads);
+      }
 
+      File indexDir = new File(indexPath);
+      List<File> oldShards = Sharding.shardDirs(indexDir);
+      if (!create && oldShards.size() != numShards) {
+        System.err.println("The index has " + oldShards.size() + " shards, update it with -shards "
+            + oldShards.size());
+        System.exit(1);
+      }
       if (create) {
-        // Create a new index in the directory, removing any
-        // previously indexed documents:
-        iwc.setOpenMode(OpenMode.CREATE);
-      } else {
-        // Add new documents to an existing index:
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        // Shards of a previous build that this one does not replace
+        for (File old : oldShards.subList(Math.min(numShards, oldShards.size()), oldShards.size())) {
+          deleteRecursively(old);
+        }
+        // and its completion dictionary, unless this one builds its own
+        if (!suggest) {
+          new File(indexDir, Suggester.FILE).delete();
+        }
       }
 
-      // Optional: for better indexing performance, if you
-      // are indexing many documents, increase the RAM
-      // buffer.  But if you do this, increase the max heap
-      // size to the JVM (eg add -Xmx512m or -Xmx1g):
-      //
-      // iwc.setRAMBufferSizeMB(256.0);
-
-      IndexWriter writer = new IndexWriter(dir, iwc);
-      indexDocs(writer, docsPath, tablePath);
+      if (numShards == 0) {
+        indexShard(indexDir, create, profile, docsPath, tablePath, numThreads, links, duplicates, shingles, snippets,
+            null, 0);
+      } else {
+        // One writer per shard, all at once, sharing the indexing threads
+        final Sharding sharding = new Sharding(numShards, shardByHost);
+        ExecutorService shardPool = Executors.newFixedThreadPool(numShards);
+        List<Future<?>> shards = new ArrayList<Future<?>>();
+        for (int shard = 0; shard < numShards; shard++) {
+          final File shardDir = Sharding.shardDir(indexDir, shard);
+          final int shardNumber = shard;
+          final boolean shardCreate = create;
+          final IndexProfile shardProfile = profile;
+          final String shardDocsPath = docsPath;
+          final String shardTablePath = tablePath;
+          final int shardThreads = Math.max(1, numThreads / numShards);
+          final LinkGraph shardLinks = links;
+          final Duplicates shardDuplicates = duplicates;
+          final boolean shardShingles = shingles;
+          final boolean shardSnippets = snippets;
+          shards.add(shardPool.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+              indexShard(shardDir, shardCreate, shardProfile, shardDocsPath, shardTablePath, shardThreads,
+                  shardLinks, shardDuplicates, shardShingles, shardSnippets, sharding, shardNumber);
+              return null;
+            }
+          }));
+        }
+        try {
+          for (Future<?> shard : shards) {
+            shard.get();
+          }
+        } catch (ExecutionException e) {
+          throw new IOException(e.getCause());
+        } finally {
+          shardPool.shutdown();
+        }
+      }
 
-      // NOTE: if you want to maximize search performance,
-      // you can optionally call forceMerge here.  This can be
-      // a terribly costly operation, so generally it's only
-      // worth it when your index is relatively static (ie
-      // you're done adding documents to it):
-      //
-      // writer.forceMerge(1);
+      if (duplicates != null) {
+        System.out.println(duplicates.report(sizeOf(indexDir), System.nanoTime() - indexStart));
+      }
 
-      writer.close();
+      // Completion dictionary of the whole index, once all shards are done
+      if (suggest) {
+        long suggestStart = System.nanoTime();
+        Suggester.build(indexDir).store(indexDir);
+        System.out.println(String.format("Built the completion dictionary in %.0f ms, %d bytes",
+            (System.nanoTime() - suggestStart) / 1e6, new File(indexDir, Suggester.FILE).length()));
+      }
 
       Date end = new Date();
       System.out.println(end.getTime() - start.getTime() + " total milliseconds");
@@ -111,53 +263,187 @@ public class IndexFiles {
     } catch (IOException e) {
       System.out.println(" caught a " + e.getClass() +
        "\n with message: " + e.getMessage());
+    } catch (InterruptedException e) {
+      System.out.println("Interrupted");
+    }
+  }
+
+
+  /**
+   * Build or update one index: all pages of the url table, or those of one
+   * shard.
+   *
+   * @param indexDir Directory of the index
+   * @param create True to create a new index, false to update
+   * @param profile Directory and writer settings
+   * @param docsPath Path of source documents
+   * @param tablePath Path of url file name table
+   * @param numThreads Number of worker threads
+   * @param links Link graph giving the PageRank of the pages, or null
+   * @param duplicates Duplicates to leave out, or null
+   * @param shingles True to index word bigram fields
+   * @param snippets True to index the snippet fields of the contents
+   * @param sharding How pages are split into shards, null for all pages
+   * @param shard Shard to index
+   */
+  static void indexShard(File indexDir, boolean create, IndexProfile profile, String docsPath, String tablePath,
+      int numThreads, LinkGraph links, Duplicates duplicates, boolean shingles, boolean snippets, Sharding sharding,
+      int shard) throws IOException {
+    Directory dir = profile.openDirectory(indexDir);
+    Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40); // use standard analyzer
+    if (shingles) {
+      // and its word bigrams for the shingle fields
+      analyzer = ShingleFields.indexAnalyzer(analyzer);
+    }
+    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, analyzer);
+
+    if (create) {
+      // Create a new index in the directory, removing any
+      // previously indexed documents:
+      iwc.setOpenMode(OpenMode.CREATE);
+    } else {
+      // Add new documents to an existing index:
+      iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+    }
+
+    // RAM buffer, merge policy and scheduler of the profile. Profiles
+    // with a large RAM buffer need a larger max heap size for the
+    // JVM (eg add -Xmx512m or -Xmx1g)
+    profile.configure(iwc);
+
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    boolean finished = false;
+    try {
+      String priorFingerprint = indexDocs(writer, docsPath, tablePath, numThreads, links, duplicates,
+          profile.isSortedByPrior(), shingles, snippets, sharding, shard);
+
+      // Final merge of the profile, if any (only worth it when the
+      // index is relatively static), and commit recording the profile,
+      // the shard and, if every page got one, how the static priors were
+      // computed, and whether every page has shingle and snippet fields
+      Map<String, String> userData = new HashMap<String, String>();
+      if (priorFingerprint != null) {
+        userData.put(StaticPrior.COMMIT_KEY, priorFingerprint);
+        if (shingles) {
+          userData.put(ShingleFields.COMMIT_KEY, String.valueOf(ShingleFields.SIZE));
+        }
+        if (snippets) {
+          userData.put(Snippets.COMMIT_KEY, "1");
+        }
+      }
+      if (sharding != null) {
+        userData.put(Sharding.COMMIT_KEY, sharding.describe(shard));
+      }
+      profile.finish(writer, userData);
+      finished = true;
+    } finally {
+      if (finished) {
+        writer.close();
+      } else {
+        // Closing would commit what was added so far
+        writer.rollback();
+      }
+      dir.close();
     }
   }
 
+  /** Size of the files under a directory. */
+  private static long sizeOf(File file) {
+    File[] children = file.listFiles();
+    if (children == null) {
+      return file.length();
+    }
+    long size = 0;
+    for (File child : children) {
+      size += sizeOf(child);
+    }
+    return size;
+  }
+
+  /** Delete a directory and everything under it. */
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    if (!file.delete()) {
+      System.err.println("Could not delete " + file);
+    }
+  }
 
   /**
-   * Add a url and its content to the index.
+   * Build the document of a url.
    * 
-   * @param writer Writer to the index where the given file/dir info will be stored
    * @param url The url string
-   * @param url_text_path Content file of the url
+   * @param head Head of the html page of the url
+   * @param text Content of the url, UTF-8 encoded
+   * @param mtime Last modification time of the url's files
+   * @param hash Hash of the indexed content, see {@link IndexManifest#hash(byte[], String)}
+   * @param prior Static prior of the url, see {@link StaticPrior#compute(String, long, int)}
    */
-  static private void addDoc(IndexWriter writer, String url, String docsPath, String fileName) {
+  static Document buildDoc(String url, HtmlHead head, byte[] text, long mtime, String hash, float prior)
+      throws IOException {
     Document doc = new Document();
+    // add url
+    doc.add(new StringField("url", url, Field.Store.YES));
+    // add contents
+    doc.add(new TextField("contents", new String(text, "UTF-8"), Field.Store.NO));
+    // add title
+    doc.add(new TextField("title", head.getTitle(), Field.Store.YES));
+    // add length
+    doc.add(new LongField("length", text.length, Field.Store.YES));
+    // add modification time and content hash, for incremental updates
+    doc.add(new StoredField("mtime", mtime));
+    doc.add(new StoredField("hash", hash));
+    // add static prior, multiplied with the text score at search time
+    doc.add(new FloatDocValuesField(StaticPrior.FIELD, prior));
+    
+    // Document-level boost
+    //doc.setBoost(1.0f);
+    return doc;
+  }
+
+  /**
+   * Add a document to the index, replacing the old copy of its url when
+   * updating an existing index.
+   * 
+   * @param writer Writer to the index where the given file/dir info will be stored
+   * @param url The url string
+   * @param doc The document of the url
+   */
+  static void writeDoc(IndexWriter writer, String url, Document doc) throws IOException {
+    if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+      // New index, so we just add the document (no old document can be there):
+      writer.addDocument(doc);
+    } else {
+      // Existing index (an old copy of this document may have been indexed) so 
+      // we use updateDocument instead to replace the old one matching the exact 
+      // path, if present:
+      writer.updateDocument(new Term("url", url), doc);
+    }
+  }
+
+  /** Read a whole file. */
+  static byte[] readFile(String path) throws IOException {
+    File f = new File(path);
+    FileInputStream fis = new FileInputStream(f);
     try {
-      // add url
-      doc.add(new StringField("url", url, Field.Store.YES));
-      // add contents
-      FileInputStream fis = new FileInputStream(docsPath+"Textdata/"+fileName);
-      doc.add(new TextField("contents", new BufferedReader(new InputStreamReader(fis, "UTF-8"))));
-      // add title
-      String title = HtmlParser.getTitle(docsPath+"Htmldata/"+fileName);
-      doc.add(new TextField("title", title, Field.Store.YES));
-      // add length
-      File f = new File(docsPath+"Textdata/"+fileName);
-      doc.add(new LongField("length", f.length(), Field.Store.YES));
-      
-      // Document-level boost
-      //doc.setBoost(1.0f);
-      
-      if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-        // New index, so we just add the document (no old document can be there):
-        System.out.println("adding " + url);
-        writer.addDocument(doc);
-      } else {
-        // Existing index (an old copy of this document may have been indexed) so 
-        // we use updateDocument instead to replace the old one matching the exact 
-        // path, if present:
-        System.out.println("updating " + url);
-        writer.updateDocument(new Term("url", url), doc);
+      byte[] data = new byte[(int) f.length()];
+      int off = 0;
+      int n;
+      while (off < data.length && (n = fis.read(data, off, data.length - off)) > 0) {
+        off += n;
       }
-    } catch (Exception e) {
-      System.err.println(e.getMessage());
+      return off == data.length ? data : Arrays.copyOf(data, off);
+    } finally {
+      fis.close();
     }
   }
 
   
-  static private boolean filterUrl(String url) {
+  static boolean filterUrl(String url) {
     if (url.matches("http://www\\.ics\\.uci\\.edu/~develop/.*")) {
       return true;
     }
@@ -185,15 +471,8 @@ public class IndexFiles {
   }
 
   /**
-   * Indexes the given file using the given writer, or if a directory is given,
-   * recurses over files and directories found under the given directory.
-   * 
-   * NOTE: This method indexes one document per input file.  This is slow.  For good
-   * throughput, put multiple documents into your input file(s).  An example of this is
-   * in the benchmark module, which can create "line doc" files, one document per line,
-   * using the
-   * <a href="../../../../../contrib-benchmark/org/apache/lucene/benchmark/byTask/tasks/WriteLineDocTask.html"
-   * >WriteLineDocTask</a>.
+   * Indexes the pages of the url table using the given writer, with one
+   * worker thread per processor.
    *  
    * @param writer Writer to the index where the given file/dir info will be stored
    * @param docsPath Path of source documents
@@ -202,49 +481,88 @@ public class IndexFiles {
    */
   static void indexDocs(IndexWriter writer, String docsPath, String tablePath)
     throws IOException {
+    indexDocs(writer, docsPath, tablePath, Runtime.getRuntime().availableProcessors(), null, null, false, false,
+        false, null, 0);
+  }
+
+  /**
+   * Indexes the pages of the url table using the given writer. The table is
+   * read by the calling thread while numThreads workers read the pages,
+   * build their documents and add them to the writer concurrently.
+   * <p>
+   * Unless the writer creates a new index, only the pages that changed since
+   * they were indexed are re-indexed, and urls no longer in the table are
+   * deleted.
+   * 
+   * @param writer Writer to the index where the given file/dir info will be stored
+   * @param docsPath Path of source documents, or of a crawl pack
+   * @param tablePath Path of url file name table, not read for a crawl pack
+   * @param numThreads Number of worker threads
+   * @param links Link graph giving the PageRank of the pages, or null
+   * @param duplicates Duplicates to leave out, stored as aliases of their canonical page, or null
+   * @param sortByPrior True to add the documents in order of decreasing prior, new indexes only
+   * @param shingles True to add word bigram fields, the writer analyzing them with
+   *        {@link ShingleFields#indexAnalyzer}
+   * @param snippets True to give the contents term vectors and a stored copy, see {@link Snippets}
+   * @param sharding How pages are split into shards, null to index all pages
+   * @param shard Shard whose pages are indexed
+   * @return Fingerprint of the static priors of the indexed pages, null if
+   *         indexing failed and the priors of the index cannot be trusted
+   * @throws IOException If there is a low-level I/O error, or an indexing
+   *         worker died and the index must not be committed
+   */
+  static String indexDocs(IndexWriter writer, String docsPath, String tablePath, int numThreads, LinkGraph links,
+      Duplicates duplicates, boolean sortByPrior, boolean shingles, boolean snippets, Sharding sharding, int shard)
+      throws IOException {
+    
+    // Filter nofollow
+//    if (!HtmlParser.toFollow(docsPath+"Htmldata/"+page_textfile)) {
+//      continue;
+//    }
+    
+    // Filter small file
+//    if (tooSmall(docsPath+"Textdata/"+page_textfile)) {
+//      continue;
+//    }
     
+    // When updating, find out what is already indexed, so unchanged pages
+    // can be skipped and urls that left the table deleted
+    IndexManifest manifest = null;
+    if (writer.getConfig().getOpenMode() != OpenMode.CREATE && DirectoryReader.indexExists(writer.getDirectory())) {
+      manifest = IndexManifest.load(writer.getDirectory());
+    }
+    
+    StaticPrior prior = links == null ? StaticPrior.current() : StaticPrior.current().withLinks(links);
+    IndexingPipeline pipeline = new IndexingPipeline(writer, docsPath, numThreads, numThreads * 64, manifest, prior,
+        sortByPrior);
+    if (duplicates != null) {
+      pipeline.skipDuplicates(duplicates);
+    }
+    if (shingles) {
+      pipeline.addShingleFields();
+    }
+    if (snippets) {
+      pipeline.addSnippetFields();
+    }
+    if (sharding != null) {
+      pipeline.restrictToShard(sharding, shard);
+    }
+    if (CrawlPack.isPack(docsPath)) {
+      pipeline.readFrom(CrawlPack.open(new File(docsPath)));
+    }
+    boolean done = false;
     try {
-      // Read url table file
-      BufferedReader tableIn = new BufferedReader(new InputStreamReader(new FileInputStream(tablePath), "UTF-8"));
-      String line;
-      //int maxLines = 50; // Note: for now, index only maxLines files
-      int counter = 0;
-      while ( (line=tableIn.readLine()) != null) {
-        String tline = line.trim();
-        if (tline.length() == 0) continue;
-        
-        // Parse url & filename
-        String[] tokens = tline.split("\\s+");
-        String page_url = tokens[0];
-        String page_textfile = tokens[1];
-        
-        // Filter useless urls
-        if (filterUrl(page_url)) {
-          continue;
-        }
-        
-        // Filter nofollow
-//        if (!HtmlParser.toFollow(docsPath+"Htmldata/"+page_textfile)) {
-//          continue;
-//        }
-        
-        // Filter small file
-//        if (tooSmall(docsPath+"Textdata/"+page_textfile)) {
-//          continue;
-//        }
-        
-        // Add this url and its contents to index
-        addDoc(writer, page_url, docsPath, page_textfile);
-        
-        counter++;
-        System.out.println("File # " +counter+ " OK!");
-        //if (counter == maxLines)
-        //  break;
-      }
-      tableIn.close();
+      pipeline.run(tablePath);
+      done = true;
     } catch (Exception e) {
       System.err.println(e.getMessage());
+      if (pipeline.hasFailedWorker()) {
+        // Pages may be missing anywhere, unlike a table read up to an error
+        System.out.println(pipeline.report());
+        throw new IOException("Indexing stopped, nothing committed", e);
+      }
     }
-
+    System.out.println(pipeline.report());
+    return done ? prior.fingerprint() : null;
   }
 }
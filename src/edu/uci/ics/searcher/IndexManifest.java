@@ -0,0 +1,168 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Last-modified time and content hash of every url in an existing index,
+ * used to re-index only the pages that changed.
+ * <p>
+ * Both are stored per document (fields {@code mtime} and {@code hash}). A page
+ * whose files have the stored modification time is skipped without being
+ * read; a page with a new time is read and hashed, and only re-indexed if the
+ * hash of its indexed content differs. Urls of the index that are not seen
+ * in the url table any more are reported by {@link #unseenUrls()}.
+ */
+class IndexManifest {
+
+  /** Stored state of one url. */
+  static class Entry {
+    final long mtime;
+    final String hash;
+    /** Urls of the duplicates of the page, stored with it. */
+    final List<String> aliases;
+
+    Entry(long mtime, String hash, List<String> aliases) {
+      this.mtime = mtime;
+      this.hash = hash;
+      this.aliases = aliases;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+  private final String priorFingerprint;
+  private final boolean shingles;
+  private final boolean snippets;
+  private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private IndexManifest(Map<String, Entry> entries, String priorFingerprint, boolean shingles,
+      boolean snippets) {
+    this.entries = entries;
+    this.priorFingerprint = priorFingerprint;
+    this.shingles = shingles;
+    this.snippets = snippets;
+  }
+
+  /**
+   * Load the manifest of an index.
+   *
+   * @param dir Directory of an existing index
+   * @throws IOException If the index cannot be read
+   */
+  static IndexManifest load(Directory dir) throws IOException {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    Set<String> fields = new HashSet<String>();
+    fields.add("url");
+    fields.add("mtime");
+    fields.add("hash");
+    fields.add(Duplicates.FIELD);
+
+    DirectoryReader reader = DirectoryReader.open(dir);
+    String priorFingerprint;
+    boolean shingles;
+    boolean snippets;
+    try {
+      priorFingerprint = reader.getIndexCommit().getUserData().get(StaticPrior.COMMIT_KEY);
+      shingles = ShingleFields.isIndexed(reader);
+      snippets = Snippets.isIndexed(reader);
+      for (AtomicReaderContext context : reader.leaves()) {
+        AtomicReader segment = context.reader();
+        Bits liveDocs = segment.getLiveDocs();
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+          if (liveDocs != null && !liveDocs.get(doc)) continue;
+          DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+          segment.document(doc, visitor);
+          Document d = visitor.getDocument();
+          String url = d.get("url");
+          if (url == null) continue;
+          // Documents indexed before the manifest existed have no time or
+          // hash; they get re-indexed once
+          IndexableField mtime = d.getField("mtime");
+          entries.put(url, new Entry(mtime == null ? -1 : mtime.numericValue().longValue(), d.get("hash"),
+              Arrays.asList(d.getValues(Duplicates.FIELD))));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new IndexManifest(entries, priorFingerprint, shingles, snippets);
+  }
+
+  /** Number of urls in the index. */
+  int size() {
+    return entries.size();
+  }
+
+  /** Fingerprint of the static priors of the index, null if it has none. */
+  String getPriorFingerprint() {
+    return priorFingerprint;
+  }
+
+  /** True if every document of the index has shingle fields. */
+  boolean hasShingles() {
+    return shingles;
+  }
+
+  /** True if every document of the index has snippet fields. */
+  boolean hasSnippets() {
+    return snippets;
+  }
+
+  /** Get the stored state of a url and mark it as seen, null if it is not in the index. */
+  Entry see(String url) {
+    seen.add(url);
+    return entries.get(url);
+  }
+
+  /** Urls of the index that were never passed to {@link #see(String)}. */
+  List<String> unseenUrls() {
+    List<String> unseen = new ArrayList<String>();
+    for (String url : entries.keySet()) {
+      if (!seen.contains(url)) {
+        unseen.add(url);
+      }
+    }
+    return unseen;
+  }
+
+  /** Hex MD5 of the content a document is built from. */
+  static String hash(byte[] text, String title) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(text);
+      md.update((byte) 0);
+      md.update(title.getBytes("UTF-8"));
+      byte[] digest = md.digest();
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
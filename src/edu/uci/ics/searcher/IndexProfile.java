@@ -0,0 +1,219 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * Named index directory and writer settings.
+ * <p>
+ * A profile picks the directory implementation, RAM buffer, merge policy and
+ * scheduler, compound file usage and an optional final merge. The profile an
+ * index was built with is recorded in its commit user data, so search-time
+ * latency can be compared across profiles and the searcher opens the index
+ * with the same directory implementation.
+ */
+public enum IndexProfile {
+
+  /** Full rebuilds: large buffer, few merges while indexing, no compound files. */
+  BULK_BUILD("bulk-build", DirectoryType.MMAP, 256.0, 20, true, false, 0, false),
+
+  /** Small updates of an existing index: small buffer, default merging, compound files. */
+  INCREMENTAL("incremental", DirectoryType.NIOFS, 32.0, 10, false, true, 0, false),
+
+  /** Static index served to many queries: merged down to a single segment. */
+  READ_OPTIMIZED("read-optimized", DirectoryType.MMAP, 256.0, 10, true, false, 1, false),
+
+  /**
+   * Static index with documents ordered by decreasing static prior, so
+   * top-k searches can stop early (see {@link EarlyTerminatingSearch}).
+   * Documents are added in order through a single writer thread state and
+   * only adjacent segments are merged, down to one. Full rebuilds only.
+   */
+  SORTED("sorted", DirectoryType.MMAP, 256.0, 10, true, false, 1, true);
+
+  /** Commit user data key of the profile name. */
+  public static final String COMMIT_KEY = "profile";
+
+  /** Directory implementations a profile can use. */
+  public enum DirectoryType {
+    MMAP, NIOFS;
+
+    Directory open(File path) throws IOException {
+      switch (this) {
+        case MMAP:
+          return new MMapDirectory(path);
+        default:
+          return new NIOFSDirectory(path);
+      }
+    }
+  }
+
+  private final String name;
+  private final DirectoryType directoryType;
+  private final double ramBufferMB;
+  private final double segmentsPerTier;
+  private final boolean concurrentMerges;
+  private final boolean useCompoundFile;
+  private final int finalSegments;
+  private final boolean sortedByPrior;
+
+  private IndexProfile(String name, DirectoryType directoryType, double ramBufferMB, double segmentsPerTier,
+      boolean concurrentMerges, boolean useCompoundFile, int finalSegments, boolean sortedByPrior) {
+    this.name = name;
+    this.directoryType = directoryType;
+    this.ramBufferMB = ramBufferMB;
+    this.segmentsPerTier = segmentsPerTier;
+    this.concurrentMerges = concurrentMerges;
+    this.useCompoundFile = useCompoundFile;
+    this.finalSegments = finalSegments;
+    this.sortedByPrior = sortedByPrior;
+  }
+
+  /** Name used on the command line and in the commit user data. */
+  public String getName() {
+    return name;
+  }
+
+  public DirectoryType getDirectoryType() {
+    return directoryType;
+  }
+
+  /** Number of segments to merge down to when indexing is done, 0 for no final merge. */
+  public int getFinalSegments() {
+    return finalSegments;
+  }
+
+  /** True if documents must be added in order of decreasing static prior. */
+  public boolean isSortedByPrior() {
+    return sortedByPrior;
+  }
+
+  /**
+   * Look up a profile by name.
+   *
+   * @throws IllegalArgumentException If there is no such profile
+   */
+  public static IndexProfile forName(String name) {
+    for (IndexProfile profile : values()) {
+      if (profile.name.equals(name)) {
+        return profile;
+      }
+    }
+    throw new IllegalArgumentException("Unknown index profile " + name);
+  }
+
+  /** Open an index directory with this profile's directory implementation. */
+  public Directory openDirectory(File path) throws IOException {
+    return directoryType.open(path);
+  }
+
+  /** Apply this profile's settings to a writer configuration. */
+  public IndexWriterConfig configure(IndexWriterConfig iwc) {
+    iwc.setRAMBufferSizeMB(ramBufferMB);
+
+    if (sortedByPrior) {
+      // One thread state flushes the documents in the order they are added,
+      // and log merges only merge adjacent segments, so the order is kept
+      iwc.setMaxThreadStates(1);
+      LogDocMergePolicy mp = new LogDocMergePolicy();
+      mp.setMergeFactor((int) segmentsPerTier);
+      mp.setUseCompoundFile(useCompoundFile);
+      if (!useCompoundFile) {
+        mp.setNoCFSRatio(0.0);
+      }
+      iwc.setMergePolicy(mp);
+    } else {
+      TieredMergePolicy mp = new TieredMergePolicy();
+      mp.setSegmentsPerTier(segmentsPerTier);
+      mp.setMaxMergeAtOnce((int) segmentsPerTier);
+      mp.setUseCompoundFile(useCompoundFile);
+      if (!useCompoundFile) {
+        mp.setNoCFSRatio(0.0);
+      }
+      iwc.setMergePolicy(mp);
+    }
+
+    ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
+    int mergeThreads = concurrentMerges ? Math.max(1, Runtime.getRuntime().availableProcessors() / 2) : 1;
+    cms.setMaxMergeCount(mergeThreads + 2);
+    cms.setMaxThreadCount(mergeThreads);
+    iwc.setMergeScheduler(cms);
+    return iwc;
+  }
+
+  /**
+   * Finish indexing: run the final merge if any, then commit with the
+   * profile recorded in the commit user data.
+   */
+  public void finish(IndexWriter writer) throws IOException {
+    finish(writer, new HashMap<String, String>());
+  }
+
+  /**
+   * Finish indexing like {@link #finish(IndexWriter)}, recording more
+   * entries in the commit user data.
+   */
+  public void finish(IndexWriter writer, Map<String, String> extraUserData) throws IOException {
+    if (finalSegments > 0) {
+      writer.forceMerge(finalSegments);
+    }
+    Map<String, String> userData = new HashMap<String, String>(extraUserData);
+    userData.put(COMMIT_KEY, name);
+    writer.commit(userData);
+  }
+
+  /**
+   * The profile recorded in the last commit of an index.
+   *
+   * @return The profile, or null if the index does not record one
+   */
+  public static IndexProfile ofIndex(Directory dir) throws IOException {
+    List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+    return recorded(commits.get(commits.size() - 1).getUserData().get(COMMIT_KEY));
+  }
+
+  /**
+   * The profile recorded in the commit of an open index, or of all the
+   * shards of a sharded one.
+   *
+   * @return The profile, or null if the index does not record one
+   */
+  public static IndexProfile ofIndex(IndexReader reader) throws IOException {
+    return recorded(CommitData.get(reader, COMMIT_KEY));
+  }
+
+  /** Profile of a recorded name, null if there is none or it is unknown. */
+  private static IndexProfile recorded(String name) {
+    if (name == null) {
+      return null;
+    }
+    try {
+      return forName(name);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + directoryType.name().toLowerCase() + ", " + ramBufferMB + " MB buffer, "
+        + segmentsPerTier + " segments per tier, " + (useCompoundFile ? "" : "no ") + "compound files"
+        + (finalSegments > 0 ? ", merged to " + finalSegments + " segments" : "")
+        + (sortedByPrior ? ", sorted by prior" : "") + ")";
+  }
+}
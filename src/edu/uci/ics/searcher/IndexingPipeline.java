@@ -0,0 +1,559 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FloatDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+/**
+ * Staged, multi-threaded indexing of the url table.
+ * <p>
+ * The calling thread reads the url table and hands the pages to a bounded
+ * queue; when the workers fall behind, the queue is full and the reader
+ * blocks (backpressure). Each of the N workers reads a page, builds its
+ * document and adds it to the (thread-safe) {@link IndexWriter}.
+ * Time and bytes are recorded per stage for the throughput report.
+ * <p>
+ * When updating an existing index, an {@link IndexManifest} tells which
+ * pages are unchanged; those are skipped, and the urls that left the url
+ * table are deleted from the index.
+ * <p>
+ * The pages can also come from a {@link CrawlPack} instead of the url table
+ * and the Textdata/ and Htmldata/ files. The calling thread then reads the
+ * records in order and hands the workers slices of their html and text.
+ * <p>
+ * For an index sorted by prior, the whole table is read and sorted by
+ * decreasing prior first. The workers still read and parse in parallel, but
+ * the documents are handed to the writer in that order through a reorder
+ * buffer.
+ */
+class IndexingPipeline {
+
+  /** A page of the url table waiting to be indexed. */
+  static class Page {
+    final String url;
+    /** File name under Textdata/ and Htmldata/, null for a crawl pack record. */
+    final String fileName;
+    /** Position in the index order, -1 if the order does not matter. */
+    final int seq;
+    /** Record of a crawl pack, -1 for files. */
+    final int record;
+    /** Html, text and modification time of a crawl pack record, read by the calling thread. */
+    ByteBuffer html;
+    ByteBuffer text;
+    long mtime;
+
+    Page(String url, String fileName) {
+      this(url, fileName, -1);
+    }
+
+    Page(String url, String fileName, int seq) {
+      this(url, fileName, seq, -1);
+    }
+
+    Page(String url, String fileName, int seq, int record) {
+      this.url = url;
+      this.fileName = fileName;
+      this.seq = seq;
+      this.record = record;
+    }
+  }
+
+  /** Marks a page that produced no document in the reorder buffer. */
+  private static final Document NO_DOCUMENT = new Document();
+
+  /** Tells a worker to stop. */
+  private static final Page END = new Page(null, null);
+
+  /** Time, bytes and item counts of one stage, summed over its threads. */
+  static class Stage {
+    final String name;
+    final AtomicLong nanos = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong count = new AtomicLong();
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    void record(long startNanos, long numBytes) {
+      nanos.addAndGet(System.nanoTime() - startNanos);
+      bytes.addAndGet(numBytes);
+      count.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      double seconds = nanos.get() / 1e9;
+      double mb = bytes.get() / (1024.0 * 1024.0);
+      return String.format("  %-6s %8d items %10.1f MB %9.1f s  %8.1f items/s %8.1f MB/s",
+          name, count.get(), mb, seconds,
+          seconds == 0 ? 0.0 : count.get() / seconds, seconds == 0 ? 0.0 : mb / seconds);
+    }
+  }
+
+  private final IndexWriter writer;
+  private final String docsPath;
+  private final int numThreads;
+  private final BlockingQueue<Page> queue;
+  /** What stopped a worker, if one died; the run then fails without waiting on the queue. */
+  private volatile Throwable workerFailure;
+  private final IndexManifest manifest;
+  private final StaticPrior prior;
+  private final boolean priorsChanged;
+  private final boolean ordered;
+  /** True to add shingle fields, and to re-index every page of an index without them. */
+  private boolean shingles;
+  private boolean shinglesAdded;
+  /** True to add snippet fields, and to re-index every page of an index without them. */
+  private boolean snippets;
+  private boolean snippetsAdded;
+  /** Duplicates left out in favor of their canonical page, none if null. */
+  private Duplicates duplicates;
+  /** Pack the pages are read from, the url table and its files if null. */
+  private CrawlPack pack;
+  /** Shard whose pages are indexed, all pages if sharding is null. */
+  private Sharding sharding;
+  private int shard;
+  /** Documents done before their turn, by position. */
+  private final Map<Integer, Document> reorderBuffer = new HashMap<Integer, Document>();
+  private int nextSeq;
+
+  final Stage tableStage = new Stage("table");
+  final Stage readStage = new Stage("read");
+  final Stage parseStage = new Stage("parse");
+  final Stage indexStage = new Stage("index");
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong added = new AtomicLong();
+  private final AtomicLong unchangedTime = new AtomicLong();
+  private final AtomicLong unchangedContent = new AtomicLong();
+  private long deleted;
+  private long wallNanos;
+
+  /**
+   * @param writer Writer of the index
+   * @param docsPath Path of source documents
+   * @param numThreads Number of worker threads
+   * @param queueCapacity Maximum number of pages waiting for a worker
+   * @param manifest State of the existing index, null when building a new one
+   * @param prior Static prior of the pages, with the link graph if any
+   * @param ordered True to add the documents in order of decreasing prior, new indexes only
+   */
+  IndexingPipeline(IndexWriter writer, String docsPath, int numThreads, int queueCapacity,
+      IndexManifest manifest, StaticPrior prior, boolean ordered) {
+    if (ordered && manifest != null) {
+      throw new IllegalArgumentException("Documents can only be ordered in a new index");
+    }
+    this.writer = writer;
+    this.ordered = ordered;
+    this.manifest = manifest;
+    this.prior = prior;
+    // Unchanged pages keep the prior they were indexed with, so they can
+    // only be skipped if the priors are computed the same way
+    this.priorsChanged = manifest != null && !prior.fingerprint().equals(manifest.getPriorFingerprint());
+    this.docsPath = docsPath;
+    this.numThreads = numThreads;
+    this.queue = new ArrayBlockingQueue<Page>(queueCapacity);
+  }
+
+  /** Add the {@link ShingleFields} to the documents. */
+  void addShingleFields() {
+    this.shingles = true;
+    this.shinglesAdded = manifest != null && !manifest.hasShingles();
+  }
+
+  /** Add the {@link Snippets} fields to the documents. */
+  void addSnippetFields() {
+    this.snippets = true;
+    this.snippetsAdded = manifest != null && !manifest.hasSnippets();
+  }
+
+  /** Leave out the duplicates of other pages, storing them as aliases of those. */
+  void skipDuplicates(Duplicates duplicates) {
+    this.duplicates = duplicates;
+  }
+
+  /** Read the pages from a crawl pack instead of the url table. */
+  void readFrom(CrawlPack pack) {
+    this.pack = pack;
+  }
+
+  /** Only index the pages of one shard of the url table. */
+  void restrictToShard(Sharding sharding, int shard) {
+    this.sharding = sharding;
+    this.shard = shard;
+  }
+
+  /**
+   * Index every page of a url table, or of the crawl pack if there is one.
+   *
+   * @param tablePath Path of url file name table, not read for a crawl pack
+   * @throws IOException If the url table cannot be read
+   */
+  void run(String tablePath) throws IOException {
+    long start = System.nanoTime();
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < numThreads; i++) {
+      futures.add(workers.submit(new Runnable() {
+        public void run() {
+          try {
+            work();
+          } catch (RuntimeException e) {
+            workerFailure = e;
+            throw e;
+          } catch (Error e) {
+            workerFailure = e;
+            throw e;
+          }
+        }
+      }));
+    }
+
+    boolean tableDone = false;
+    try {
+      if (pack != null) {
+        readPack();
+      } else {
+        readTable(tablePath);
+      }
+      tableDone = true;
+    } finally {
+      // Always release the workers, even if the table could not be read
+      try {
+        release(workers, futures);
+      } finally {
+        workers.shutdown();
+        wallNanos = System.nanoTime() - start;
+      }
+    }
+
+    // Only trust the list of urls that left the table if it was read to the end
+    if (manifest != null && tableDone && !Thread.currentThread().isInterrupted()) {
+      for (String url : manifest.unseenUrls()) {
+        writer.deleteDocuments(new Term("url", url));
+        deleted++;
+      }
+      wallNanos = System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Stop the workers once the queue is drained, or at once if one of them
+   * died, and wait for them.
+   *
+   * @throws IOException What stopped a worker, if one died
+   */
+  private void release(ExecutorService workers, List<Future<?>> futures) throws IOException {
+    try {
+      for (int i = 0; i < numThreads; i++) {
+        put(END);
+      }
+    } catch (IOException e) {
+      // A worker died, thrown below once the others stopped
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (workerFailure != null) {
+      // Interrupt the workers waiting for pages that will not come
+      workers.shutdownNow();
+    }
+    try {
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          workerFailure = e.getCause();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (workerFailure != null) {
+      throw new IOException("Indexing worker failed: " + workerFailure, workerFailure);
+    }
+  }
+
+  /**
+   * Queue a page for the workers, waiting while the queue is full.
+   *
+   * @throws IOException If a worker died, as the queue may then never drain
+   */
+  private void put(Page page) throws InterruptedException, IOException {
+    do {
+      if (workerFailure != null) {
+        throw new IOException("Indexing worker failed: " + workerFailure, workerFailure);
+      }
+    } while (!queue.offer(page, 100, TimeUnit.MILLISECONDS));
+  }
+
+  /** True if a worker died, leaving pages of the run unindexed. */
+  boolean hasFailedWorker() {
+    return workerFailure != null;
+  }
+
+  private void readTable(String tablePath) throws IOException {
+    List<Page> pages = ordered ? new ArrayList<Page>() : null;
+    BufferedReader tableIn = new BufferedReader(new InputStreamReader(new FileInputStream(tablePath), "UTF-8"));
+    try {
+      long t = System.nanoTime();
+      String line;
+      while ((line = tableIn.readLine()) != null) {
+        String tline = line.trim();
+        if (tline.length() == 0) continue;
+
+        // Parse url & filename
+        String[] tokens = tline.split("\\s+");
+        String page_url = tokens[0];
+        String page_textfile = tokens[1];
+        tableStage.record(t, line.length() + 1);
+
+        if (isIndexed(page_url)) {
+          if (ordered) {
+            pages.add(new Page(page_url, page_textfile));
+          } else {
+            put(new Page(page_url, page_textfile));
+          }
+        }
+        t = System.nanoTime();
+      }
+      if (ordered) {
+        queueInOrder(pages);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      tableIn.close();
+    }
+  }
+
+  /** Filter useless urls, pages of other shards and duplicates. */
+  private boolean isIndexed(String url) {
+    return !IndexFiles.filterUrl(url) && (sharding == null || sharding.shardOf(url) == shard)
+        && (duplicates == null || !duplicates.isAlias(url));
+  }
+
+  /** Read the records of the crawl pack in order, like the lines of the url table. */
+  private void readPack() throws IOException {
+    List<Page> pages = ordered ? new ArrayList<Page>() : null;
+    try {
+      for (int r = 0; r < pack.size(); r++) {
+        String url = pack.url(r);
+        if (!isIndexed(url)) continue;
+        Page page = new Page(url, null, -1, r);
+        if (ordered) {
+          pages.add(page);
+        } else {
+          put(read(page));
+        }
+      }
+      if (ordered) {
+        queueInOrder(pages);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Slice the html and text of a crawl pack record. A compressed block is
+   * inflated by the first of its records, so this thread reading them in
+   * order inflates each block once; in prior order, it may inflate a block
+   * for every record, so sorted indexes are best built from uncompressed
+   * packs.
+   */
+  private Page read(Page page) throws IOException {
+    long t = System.nanoTime();
+    page.html = pack.html(page.record);
+    page.text = pack.text(page.record);
+    page.mtime = pack.mtime(page.record);
+    tableStage.record(t, page.html.remaining() + page.text.remaining());
+    return page;
+  }
+
+  /** Queue pages by decreasing prior, computed from the length of their text file. */
+  private void queueInOrder(List<Page> pages) throws InterruptedException, IOException {
+    final float[] priors = new float[pages.size()];
+    Integer[] order = new Integer[pages.size()];
+    for (int i = 0; i < order.length; i++) {
+      Page page = pages.get(i);
+      long length = page.record >= 0 ? pack.text(page.record).remaining()
+          : new File(docsPath + "Textdata/" + page.fileName).length();
+      priors[i] = prior.compute(page.url, length);
+      order[i] = i;
+    }
+    // Stable, so pages of equal prior keep their table order
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Float.compare(priors[b], priors[a]);
+      }
+    });
+    for (int seq = 0; seq < order.length; seq++) {
+      Page page = pages.get(order[seq]);
+      Page next = new Page(page.url, page.fileName, seq, page.record);
+      put(page.record >= 0 ? read(next) : next);
+    }
+  }
+
+  /**
+   * Add the document of a page once all pages before it are done, and the
+   * documents of the pages after it that are waiting for it.
+   *
+   * @param doc The document, or {@link #NO_DOCUMENT} if the page failed
+   */
+  private void addInOrder(Page page, Document doc) {
+    synchronized (reorderBuffer) {
+      reorderBuffer.put(page.seq, doc);
+      Document next;
+      while ((next = reorderBuffer.remove(nextSeq)) != null) {
+        nextSeq++;
+        if (next == NO_DOCUMENT) continue;
+        try {
+          writer.addDocument(next);
+        } catch (IOException e) {
+          failed.incrementAndGet();
+          System.err.println(next.get("url") + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void work() {
+    while (workerFailure == null) {
+      Page page;
+      try {
+        page = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (page == END) {
+        return;
+      }
+      boolean handedOver = false;
+      try {
+        boolean packed = page.record >= 0;
+        String textPath = packed ? null : docsPath + "Textdata/" + page.fileName;
+        String htmlPath = packed ? null : docsPath + "Htmldata/" + page.fileName;
+        long mtime = packed ? page.mtime
+            : Math.max(new File(textPath).lastModified(), new File(htmlPath).lastModified());
+        IndexManifest.Entry old = manifest == null ? null : manifest.see(page.url);
+        // The aliases are stored with the page, a change re-indexes it
+        List<String> aliases = duplicates == null ? Collections.<String>emptyList() : duplicates.aliasesOf(page.url);
+        // Unchanged pages are skipped unless their document would change anyway
+        boolean keep = old != null && !priorsChanged && !shinglesAdded && !snippetsAdded && aliases.equals(old.aliases);
+        if (keep && old.mtime == mtime) {
+          // Files untouched since they were indexed
+          unchangedTime.incrementAndGet();
+          continue;
+        }
+
+        long t = System.nanoTime();
+        byte[] text = packed ? CrawlPack.bytes(page.text) : IndexFiles.readFile(textPath);
+        readStage.record(t, text.length);
+
+        t = System.nanoTime();
+        HtmlHead head = packed ? HtmlParser.parseHead(page.html) : HtmlParser.parseHead(htmlPath);
+        String hash = IndexManifest.hash(text, head.getTitle());
+        if (keep && hash.equals(old.hash)) {
+          // Files touched, but what would be indexed is the same
+          unchangedContent.incrementAndGet();
+          continue;
+        }
+        Document doc = IndexFiles.buildDoc(page.url, head, text, mtime, hash, prior.compute(page.url, text.length));
+        if (prior.hasLinks()) {
+          doc.add(new FloatDocValuesField(StaticPrior.AUTHORITY_FIELD, prior.authority(page.url)));
+        }
+        for (String alias : aliases) {
+          doc.add(new StoredField(Duplicates.FIELD, alias));
+        }
+        if (shingles) {
+          ShingleFields.addFields(doc);
+        }
+        if (snippets) {
+          Snippets.addFields(doc);
+        }
+        parseStage.record(t, head.getBytesRead());
+
+        t = System.nanoTime();
+        if (ordered) {
+          handedOver = true;
+          addInOrder(page, doc);
+        } else if (manifest != null && old == null) {
+          // Not in the index yet, nothing to replace
+          writer.addDocument(doc);
+          added.incrementAndGet();
+        } else {
+          IndexFiles.writeDoc(writer, page.url, doc);
+        }
+        indexStage.record(t, text.length);
+
+        long done = indexStage.count.get();
+        if (done % 1000 == 0) {
+          System.out.println("File # " + done + " OK!");
+        }
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        System.err.println(page.url + ": " + e.getMessage());
+        if (ordered && !handedOver) {
+          // Do not hold up the pages after it
+          addInOrder(page, NO_DOCUMENT);
+        }
+      }
+    }
+  }
+
+  /** Throughput report of the last run. */
+  String report() {
+    double seconds = wallNanos / 1e9;
+    long docs = indexStage.count.get();
+    double mb = indexStage.bytes.get() / (1024.0 * 1024.0);
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Indexed %d documents (%d failed) with %d threads in %.1f s: %.1f docs/s, %.1f MB/s%n",
+        docs, failed.get(), numThreads, seconds,
+        seconds == 0 ? 0.0 : docs / seconds, seconds == 0 ? 0.0 : mb / seconds));
+    if (manifest != null) {
+      sb.append(String.format("Update of %d indexed urls: %d added, %d replaced, %d deleted, "
+          + "%d skipped as untouched, %d skipped as unchanged content%n",
+          manifest.size(), added.get(), docs - added.get(), deleted,
+          unchangedTime.get(), unchangedContent.get()));
+      if (priorsChanged) {
+        sb.append("Static priors computed differently than in the index: every page re-indexed\n");
+      }
+      if (shinglesAdded) {
+        sb.append("Shingle fields added to an index without them: every page re-indexed\n");
+      }
+      if (snippetsAdded) {
+        sb.append("Snippet fields added to an index without them: every page re-indexed\n");
+      }
+    }
+    sb.append("Per stage (time summed over threads):\n");
+    sb.append(tableStage).append('\n');
+    sb.append(readStage).append('\n');
+    sb.append(parseStage).append('\n');
+    sb.append(indexStage);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,104 @@
+package edu.uci.ics.searcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, in the spirit of
+ * HdrHistogram: values are kept in microseconds, exactly below 16 us and
+ * then in 8 sub-buckets per power of two, so a percentile is off by at most
+ * 12.5%, in constant memory whatever the number of values.
+ */
+class LatencyHistogram {
+
+  private static final int LINEAR = 16;
+  private static final int SUB_BUCKETS = 8;
+  private static final int SUB_BITS = 3;
+  /** Largest power of two covered, about 12 days in microseconds. */
+  private static final int MAX_EXPONENT = 40;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /** Record a duration in nanoseconds. */
+  void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(bucket(micros));
+    count.incrementAndGet();
+    sumMicros.addAndGet(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  private static int bucket(long micros) {
+    if (micros < LINEAR) {
+      return (int) micros;
+    }
+    int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+    int sub = (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  /** Largest value of a bucket, in microseconds. */
+  private static long upperBound(int bucket) {
+    if (bucket < LINEAR) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR) % SUB_BUCKETS;
+    return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0.0 : sumMicros.get() / 1000.0 / n;
+  }
+
+  double getMaxMillis() {
+    return maxMicros.get() / 1000.0;
+  }
+
+  /**
+   * Value below which a percentage of the recorded values fall, in milliseconds.
+   *
+   * @param percentile Percentage, e.g. 99
+   */
+  double getPercentileMillis(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0.0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+      }
+    }
+    return getMaxMillis();
+  }
+
+  void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sumMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  /** Count, mean, p50, p90, p99 and max on one line. */
+  String summary() {
+    return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms", getCount(), getMeanMillis(),
+        getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99), getMaxMillis());
+  }
+}
@@ -0,0 +1,205 @@
+package edu.uci.ics.searcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outlinks of a html page: the hrefs of its {@code <a>} and {@code <area>}
+ * tags, resolved against the page url and without fragments.
+ * <p>
+ * Like {@link HtmlHead}, the page is scanned once at the byte level without
+ * building a DOM; comments, scripts and styles are skipped. Links marked
+ * {@code rel=nofollow}, and all links of a page whose robots directives say
+ * nofollow, are left out.
+ */
+class LinkExtractor {
+
+  private LinkExtractor() {}
+
+  /**
+   * Extract the outlinks of a UTF-8 html page.
+   *
+   * @param html The page
+   * @param pageUrl Url of the page, to resolve relative links
+   */
+  static List<String> extract(byte[] html, String pageUrl) throws IOException {
+    List<String> links = new ArrayList<String>();
+    String robots = HtmlHead.read(new ByteArrayInputStream(html), HtmlHead.DEFAULT_BYTE_LIMIT).getRobots();
+    if (robots != null && robots.toLowerCase().indexOf("nofollow") >= 0) {
+      return links;
+    }
+    URI base;
+    try {
+      base = new URI(pageUrl);
+    } catch (Exception e) {
+      base = null;
+    }
+
+    int n = html.length;
+    int i = 0;
+    while (i < n) {
+      if (html[i] != '<') {
+        i++;
+        continue;
+      }
+      if (startsWith(html, i + 1, "!--")) {
+        i = indexOf(html, i + 4, "-->");
+        continue;
+      }
+      int nameEnd = i + 1;
+      while (nameEnd < n && isNameChar(html[nameEnd])) {
+        nameEnd++;
+      }
+      String name = lower(html, i + 1, nameEnd);
+      int tagEnd = tagEnd(html, nameEnd);
+      if (name.equals("script") || name.equals("style")) {
+        i = indexOf(html, tagEnd, "</" + name);
+        continue;
+      }
+      if (name.equals("a") || name.equals("area")) {
+        String href = attribute(html, nameEnd, tagEnd, "href");
+        String rel = attribute(html, nameEnd, tagEnd, "rel");
+        if (href != null && (rel == null || rel.toLowerCase().indexOf("nofollow") < 0)) {
+          String link = resolve(base, HtmlHead.decodeEntities(href.trim()));
+          if (link != null) {
+            links.add(link);
+          }
+        }
+      }
+      i = tagEnd;
+    }
+    return links;
+  }
+
+  /** Absolute http(s) url of a link without its fragment, or null. */
+  static String resolve(URI base, String href) {
+    int hash = href.indexOf('#');
+    if (hash >= 0) {
+      href = href.substring(0, hash);
+    }
+    if (href.length() == 0) {
+      return null;
+    }
+    try {
+      URI uri = base == null ? new URI(href) : base.resolve(new URI(href.replace(" ", "%20")));
+      String scheme = uri.getScheme();
+      if (scheme == null || !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))) {
+        return null;
+      }
+      return uri.toString();
+    } catch (Exception e) {
+      // Malformed href
+      return null;
+    }
+  }
+
+  /** Value of an attribute between two offsets of a tag, or null. */
+  private static String attribute(byte[] html, int from, int to, String attr) {
+    int i = from;
+    while (i < to) {
+      while (i < to && !isNameChar(html[i])) {
+        i++;
+      }
+      int nameStart = i;
+      while (i < to && isNameChar(html[i])) {
+        i++;
+      }
+      boolean match = lower(html, nameStart, i).equals(attr);
+      while (i < to && isSpace(html[i])) {
+        i++;
+      }
+      if (i >= to || html[i] != '=') {
+        continue;
+      }
+      i++;
+      while (i < to && isSpace(html[i])) {
+        i++;
+      }
+      int valueStart;
+      int valueEnd;
+      if (i < to && (html[i] == '"' || html[i] == '\'')) {
+        byte quote = html[i];
+        valueStart = i + 1;
+        valueEnd = valueStart;
+        while (valueEnd < to && html[valueEnd] != quote) {
+          valueEnd++;
+        }
+        i = valueEnd + 1;
+      } else {
+        valueStart = i;
+        valueEnd = i;
+        while (valueEnd < to && !isSpace(html[valueEnd]) && html[valueEnd] != '>') {
+          valueEnd++;
+        }
+        i = valueEnd;
+      }
+      if (match) {
+        try {
+          return new String(html, valueStart, valueEnd - valueStart, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Offset just past the '>' ending a tag, skipping quoted values. */
+  private static int tagEnd(byte[] html, int from) {
+    byte quote = 0;
+    for (int i = from; i < html.length; i++) {
+      byte b = html[i];
+      if (quote != 0) {
+        if (b == quote) quote = 0;
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '>') {
+        return i + 1;
+      }
+    }
+    return html.length;
+  }
+
+  private static int indexOf(byte[] html, int from, String s) {
+    for (int i = from; i + s.length() <= html.length; i++) {
+      if (startsWith(html, i, s)) {
+        return i + s.length();
+      }
+    }
+    return html.length;
+  }
+
+  /** Case-insensitive match of an ASCII string at an offset. */
+  private static boolean startsWith(byte[] html, int at, String s) {
+    if (at + s.length() > html.length) {
+      return false;
+    }
+    for (int j = 0; j < s.length(); j++) {
+      if (Character.toLowerCase((char) html[at + j]) != s.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String lower(byte[] html, int from, int to) {
+    StringBuilder sb = new StringBuilder(to - from);
+    for (int i = from; i < to; i++) {
+      sb.append(Character.toLowerCase((char) html[i]));
+    }
+    return sb.toString();
+  }
+
+  private static boolean isNameChar(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_'
+        || b == ':';
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+}
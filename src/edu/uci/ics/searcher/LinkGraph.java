@@ -0,0 +1,450 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hyperlink graph of the crawl and the PageRank of its pages.
+ * <p>
+ * Urls of the url table get dense ids in table order, and the outlinks of
+ * page {@code u} are {@code targets[offsets[u] .. offsets[u + 1])}
+ * (compressed sparse rows). Links to pages outside the table, self links
+ * and duplicate links of a page are dropped. PageRank is computed by
+ * pulling ranks along the inlinks, so the pages can be split between
+ * threads without synchronization; dangling pages spread their rank evenly.
+ * <p>
+ * The graph and its ranks are saved to a single file read back through a
+ * memory map, so the index can be re-ranked without reading the crawl again.
+ */
+class LinkGraph {
+
+  private static final int MAGIC = 0x4c4e4b31; // "LNK1"
+
+  /** Urls by id. */
+  final String[] urls;
+  /** Start of the outlinks of each page in {@link #targets}, plus the end. */
+  final int[] offsets;
+  /** Outlink targets of all pages. */
+  final int[] targets;
+  /** PageRank of each page, summing to 1; null until computed. */
+  float[] ranks;
+
+  private Map<String, Integer> ids;
+  private int[] inlinkCounts;
+
+  LinkGraph(String[] urls, int[] offsets, int[] targets, float[] ranks) {
+    this.urls = urls;
+    this.offsets = offsets;
+    this.targets = targets;
+    this.ranks = ranks;
+  }
+
+  int numPages() {
+    return urls.length;
+  }
+
+  int numLinks() {
+    return targets.length;
+  }
+
+  /** Id of a url, -1 if it is not in the graph. */
+  synchronized int id(String url) {
+    if (ids == null) {
+      ids = new HashMap<String, Integer>(urls.length * 2);
+      for (int i = 0; i < urls.length; i++) {
+        ids.put(urls[i], i);
+      }
+    }
+    Integer id = ids.get(url);
+    return id == null ? -1 : id;
+  }
+
+  /** Number of pages linking to a page. */
+  synchronized int inlinks(int id) {
+    if (inlinkCounts == null) {
+      inlinkCounts = new int[urls.length];
+      for (int target : targets) {
+        inlinkCounts[target]++;
+      }
+    }
+    return inlinkCounts[id];
+  }
+
+  /** PageRank of a page scaled so the average page has 1. */
+  float authority(int id) {
+    return ranks[id] * urls.length;
+  }
+
+  /** Identifies the links and ranks, to tell graphs apart. */
+  String fingerprint() {
+    return urls.length + "x" + targets.length + "-"
+        + Integer.toHexString(31 * Arrays.hashCode(targets) + Arrays.hashCode(ranks));
+  }
+
+  /**
+   * Extract the link graph of the pages of a url table.
+   *
+   * @param docsPath Path of source documents, with the html under Htmldata/, or of a crawl pack
+   * @param tablePath Path of url file name table, not read for a crawl pack
+   * @param numThreads Number of threads reading and scanning pages
+   */
+  static LinkGraph build(String docsPath, String tablePath, int numThreads) throws IOException {
+    final CrawlPages pages = new CrawlPages(docsPath, tablePath);
+    final List<String> urlList = pages.urls();
+    final Map<String, Integer> ids = new HashMap<String, Integer>(urlList.size() * 2);
+    for (int u = 0; u < urlList.size(); u++) {
+      ids.put(urlList.get(u), u);
+    }
+
+    final int n = urlList.size();
+    final int[][] outlinks = new int[n][];
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      int chunk = (n + numThreads - 1) / Math.max(1, numThreads);
+      for (int start = 0; start < n; start += chunk) {
+        final int from = start;
+        final int to = Math.min(n, start + chunk);
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            int[] buf = new int[64];
+            for (int u = from; u < to; u++) {
+              int count = 0;
+              try {
+                byte[] html = pages.html(u);
+                for (String link : LinkExtractor.extract(html, urlList.get(u))) {
+                  Integer v = ids.get(link);
+                  if (v == null || v == u) continue;
+                  if (count == buf.length) buf = Arrays.copyOf(buf, count * 2);
+                  buf[count++] = v;
+                }
+              } catch (IOException e) {
+                System.err.println(urlList.get(u) + ": " + e.getMessage());
+              }
+              // Sorted and without duplicates
+              Arrays.sort(buf, 0, count);
+              int unique = 0;
+              for (int i = 0; i < count; i++) {
+                if (unique == 0 || buf[i] != buf[unique - 1]) buf[unique++] = buf[i];
+              }
+              outlinks[u] = Arrays.copyOf(buf, unique);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting links");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+
+    int[] offsets = new int[n + 1];
+    for (int u = 0; u < n; u++) {
+      offsets[u + 1] = offsets[u] + outlinks[u].length;
+    }
+    int[] targets = new int[offsets[n]];
+    for (int u = 0; u < n; u++) {
+      System.arraycopy(outlinks[u], 0, targets, offsets[u], outlinks[u].length);
+    }
+    LinkGraph graph = new LinkGraph(urlList.toArray(new String[n]), offsets, targets, null);
+    graph.ids = ids;
+    return graph;
+  }
+
+  /**
+   * Compute the PageRank of the pages.
+   *
+   * @param damping Probability of following a link, usually 0.85
+   * @param maxIterations Maximum number of iterations
+   * @param tolerance Stop when the ranks change by less than this (L1 norm)
+   * @param numThreads Number of threads
+   * @return Number of iterations run
+   */
+  int computePageRank(final double damping, int maxIterations, double tolerance, int numThreads)
+      throws InterruptedException {
+    final int n = urls.length;
+    if (n == 0) {
+      ranks = new float[0];
+      return 0;
+    }
+
+    // Inlinks, the transpose of the outlinks
+    final int[] inOffsets = new int[n + 1];
+    for (int target : targets) {
+      inOffsets[target + 1]++;
+    }
+    for (int v = 0; v < n; v++) {
+      inOffsets[v + 1] += inOffsets[v];
+    }
+    final int[] sources = new int[targets.length];
+    int[] fill = Arrays.copyOf(inOffsets, n);
+    for (int u = 0; u < n; u++) {
+      for (int i = offsets[u]; i < offsets[u + 1]; i++) {
+        sources[fill[targets[i]]++] = u;
+      }
+    }
+
+    final double[] rank = new double[n];
+    final double[] next = new double[n];
+    final double[] contribution = new double[n];
+    Arrays.fill(rank, 1.0 / n);
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    int iteration = 0;
+    try {
+      int chunk = (n + numThreads - 1) / numThreads;
+      List<Callable<Double>> spread = new ArrayList<Callable<Double>>();
+      List<Callable<Double>> gather = new ArrayList<Callable<Double>>();
+      final double[] dangling = new double[1];
+      for (int start = 0; start < n; start += chunk) {
+        final int from = start;
+        final int to = Math.min(n, start + chunk);
+        // Rank each page passes along each of its links; returns the rank of dangling pages
+        spread.add(new Callable<Double>() {
+          public Double call() {
+            double danglingRank = 0;
+            for (int u = from; u < to; u++) {
+              int degree = offsets[u + 1] - offsets[u];
+              if (degree == 0) {
+                danglingRank += rank[u];
+                contribution[u] = 0;
+              } else {
+                contribution[u] = rank[u] / degree;
+              }
+            }
+            return danglingRank;
+          }
+        });
+        // New rank of each page; returns how much the ranks changed
+        gather.add(new Callable<Double>() {
+          public Double call() {
+            double base = (1 - damping) / n + damping * dangling[0] / n;
+            double delta = 0;
+            for (int v = from; v < to; v++) {
+              double sum = 0;
+              for (int i = inOffsets[v]; i < inOffsets[v + 1]; i++) {
+                sum += contribution[sources[i]];
+              }
+              next[v] = base + damping * sum;
+              delta += Math.abs(next[v] - rank[v]);
+            }
+            return delta;
+          }
+        });
+      }
+
+      while (iteration < maxIterations) {
+        iteration++;
+        dangling[0] = sum(pool.invokeAll(spread));
+        double delta = sum(pool.invokeAll(gather));
+        System.arraycopy(next, 0, rank, 0, n);
+        if (delta < tolerance) {
+          break;
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    ranks = new float[n];
+    for (int v = 0; v < n; v++) {
+      ranks[v] = (float) rank[v];
+    }
+    return iteration;
+  }
+
+  private static double sum(List<Future<Double>> futures) throws InterruptedException {
+    double sum = 0;
+    for (Future<Double> future : futures) {
+      try {
+        sum += future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Save the graph and its ranks.
+   * <p>
+   * Layout, big-endian: magic, number of pages n, number of links m, 1 if
+   * there are ranks; offsets (n + 1 ints), targets (m ints), ranks (n
+   * floats, if any); then each url as a length and its UTF-8 bytes.
+   */
+  void save(File file) throws IOException {
+    byte[][] urlBytes = new byte[urls.length][];
+    long size = 16 + 4L * (offsets.length + targets.length + (ranks == null ? 0 : ranks.length));
+    for (int i = 0; i < urls.length; i++) {
+      urlBytes[i] = urls[i].getBytes("UTF-8");
+      size += 4 + urlBytes[i].length;
+    }
+
+    file.delete();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buf.putInt(MAGIC).putInt(urls.length).putInt(targets.length).putInt(ranks == null ? 0 : 1);
+      buf.asIntBuffer().put(offsets);
+      buf.position(buf.position() + 4 * offsets.length);
+      buf.asIntBuffer().put(targets);
+      buf.position(buf.position() + 4 * targets.length);
+      if (ranks != null) {
+        buf.asFloatBuffer().put(ranks);
+        buf.position(buf.position() + 4 * ranks.length);
+      }
+      for (byte[] url : urlBytes) {
+        buf.putInt(url.length).put(url);
+      }
+      buf.force();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Load a graph saved by {@link #save(File)}. */
+  static LinkGraph load(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+        throw new IOException(file + " is not a link graph");
+      }
+      int n = buf.getInt();
+      int m = buf.getInt();
+      boolean hasRanks = buf.getInt() != 0;
+      int[] offsets = new int[n + 1];
+      buf.asIntBuffer().get(offsets);
+      buf.position(buf.position() + 4 * offsets.length);
+      int[] targets = new int[m];
+      buf.asIntBuffer().get(targets);
+      buf.position(buf.position() + 4 * targets.length);
+      float[] ranks = null;
+      if (hasRanks) {
+        ranks = new float[n];
+        buf.asFloatBuffer().get(ranks);
+        buf.position(buf.position() + 4 * ranks.length);
+      }
+      String[] urls = new String[n];
+      for (int i = 0; i < n; i++) {
+        byte[] url = new byte[buf.getInt()];
+        buf.get(url);
+        urls[i] = new String(url, "UTF-8");
+      }
+      return new LinkGraph(urls, offsets, targets, ranks);
+    } catch (RuntimeException e) {
+      // Truncated file (BufferUnderflowException) or bad counts
+      throw new IOException(file + " is not a valid link graph: " + e);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Load the graph of a file, or build it from the crawl and save it there
+   * if the file does not exist.
+   */
+  static LinkGraph loadOrBuild(File file, String docsPath, String tablePath, int numThreads)
+      throws IOException, InterruptedException {
+    if (file.exists()) {
+      LinkGraph graph = load(file);
+      if (graph.ranks != null) {
+        return graph;
+      }
+    }
+    long start = System.nanoTime();
+    LinkGraph graph = build(docsPath, tablePath, numThreads);
+    long built = System.nanoTime();
+    int iterations = graph.computePageRank(0.85, 100, 1e-6, numThreads);
+    System.out.println(String.format("Link graph of %d pages, %d links built in %.0f ms, "
+        + "PageRank converged in %d iterations, %.0f ms", graph.numPages(), graph.numLinks(),
+        (built - start) / 1e6, iterations, (System.nanoTime() - built) / 1e6));
+    graph.save(file);
+    return graph;
+  }
+
+  /** Build or load a link graph, rank it and print the top pages. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.LinkGraph [-docs DOCS_PATH] [-table TABLE_PATH] [-graph FILE]"
+        + " [-rerank] [-damping D] [-iterations N] [-threads N] [-top N]\n\n"
+        + "Extracts the links of the crawl into FILE and computes PageRank. With -rerank,\n"
+        + "the links are read back from FILE instead of the crawl.";
+    String docsPath = "/Users/yaocheng/Desktop/Index_source_new/";
+    String tablePath = "/Users/yaocheng/Desktop/Index_source_new/table_url_list.txt";
+    String graphPath = "links.graph";
+    boolean rerank = false;
+    double damping = 0.85;
+    int iterations = 100;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int top = 10;
+    for (int i = 0; i < args.length; i++) {
+      if ("-docs".equals(args[i])) {
+        docsPath = args[++i];
+      } else if ("-table".equals(args[i])) {
+        tablePath = args[++i];
+      } else if ("-graph".equals(args[i])) {
+        graphPath = args[++i];
+      } else if ("-rerank".equals(args[i])) {
+        rerank = true;
+      } else if ("-damping".equals(args[i])) {
+        damping = Double.parseDouble(args[++i]);
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if ("-top".equals(args[i])) {
+        top = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+
+    long start = System.nanoTime();
+    LinkGraph graph = rerank ? load(new File(graphPath)) : build(docsPath, tablePath, numThreads);
+    long loaded = System.nanoTime();
+    System.out.println(String.format("%s %d pages, %d links in %.0f ms", rerank ? "Loaded" : "Extracted",
+        graph.numPages(), graph.numLinks(), (loaded - start) / 1e6));
+    int ran = graph.computePageRank(damping, iterations, 1e-6, numThreads);
+    System.out.println(String.format("PageRank: %d iterations with %d threads in %.0f ms", ran, numThreads,
+        (System.nanoTime() - loaded) / 1e6));
+    graph.save(new File(graphPath));
+
+    Integer[] order = new Integer[graph.numPages()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final float[] ranks = graph.ranks;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Float.compare(ranks[b], ranks[a]);
+      }
+    });
+    for (int i = 0; i < Math.min(top, order.length); i++) {
+      int id = order[i];
+      System.out.println(String.format("%2d. %.5f %5d inlinks  %s", i + 1, ranks[id], graph.inlinks(id),
+          graph.urls[id]));
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent load generator for {@link SearchServer}: a number of client
+ * threads send searches back to back for a fixed time, then the latency
+ * percentiles, throughput and response codes are reported.
+ * <p>
+ * Usage: {@code java edu.uci.ics.searcher.LoadGenerator [-url BASE_URL]
+ * [-queries FILE|DIR] [-clients N] [-seconds S] [-k K]}. The queries are
+ * read one per line from a file, or taken from the file names of an oracle
+ * directory (query_results/ by default).
+ */
+public class LoadGenerator {
+
+  /** Latencies and response codes of one client. */
+  private static class Client extends Thread {
+    private final String baseUrl;
+    private final String[] queries;
+    private final int k;
+    private final long deadline;
+    private final int offset;
+    private long[] latencies = new long[1024];
+    private int count;
+    private final int[] statusCounts = new int[600];
+    private int errors;
+
+    Client(String baseUrl, String[] queries, int k, long deadline, int offset) {
+      this.baseUrl = baseUrl;
+      this.queries = queries;
+      this.k = k;
+      this.deadline = deadline;
+      this.offset = offset;
+    }
+
+    @Override
+    public void run() {
+      byte[] buf = new byte[8192];
+      int i = offset;
+      while (System.nanoTime() < deadline) {
+        String query = queries[i++ % queries.length];
+        long start = System.nanoTime();
+        try {
+          URL url = new URL(baseUrl + "/search?k=" + k + "&q=" + URLEncoder.encode(query, "UTF-8"));
+          HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+          int status = conn.getResponseCode();
+          InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+          if (in != null) {
+            // Read the whole body so the connection can be reused
+            while (in.read(buf) >= 0) {}
+            in.close();
+          }
+          statusCounts[status]++;
+        } catch (IOException e) {
+          errors++;
+          continue;
+        }
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = System.nanoTime() - start;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String baseUrl = "http://localhost:" + SearchServer.DEFAULT_PORT;
+    String queriesPath = "query_results";
+    int clients = 8;
+    int seconds = 10;
+    int k = 10;
+    for (int i = 0; i < args.length; i++) {
+      if ("-url".equals(args[i])) {
+        baseUrl = args[++i];
+      } else if ("-queries".equals(args[i])) {
+        queriesPath = args[++i];
+      } else if ("-clients".equals(args[i])) {
+        clients = Integer.parseInt(args[++i]);
+      } else if ("-seconds".equals(args[i])) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if ("-k".equals(args[i])) {
+        k = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: java edu.uci.ics.searcher.LoadGenerator [-url BASE_URL]"
+            + " [-queries FILE|DIR] [-clients N] [-seconds S] [-k K]");
+        System.exit(1);
+      }
+    }
+    String[] queries = loadQueries(queriesPath);
+    if (queries.length == 0) {
+      System.err.println("No queries in " + queriesPath);
+      System.exit(1);
+    }
+
+    System.out.println("Sending " + queries.length + " queries to " + baseUrl + " from " + clients
+        + " clients for " + seconds + " s...");
+    long start = System.nanoTime();
+    long deadline = start + seconds * 1000000000L;
+    Client[] threads = new Client[clients];
+    for (int i = 0; i < clients; i++) {
+      threads[i] = new Client(baseUrl, queries, k, deadline, i);
+      threads[i].start();
+    }
+    for (Client t : threads) {
+      t.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    int total = 0;
+    int errors = 0;
+    int[] statusCounts = new int[600];
+    for (Client t : threads) {
+      total += t.count;
+      errors += t.errors;
+      for (int s = 0; s < statusCounts.length; s++) {
+        statusCounts[s] += t.statusCounts[s];
+      }
+    }
+    long[] all = new long[total];
+    int n = 0;
+    for (Client t : threads) {
+      System.arraycopy(t.latencies, 0, all, n, t.count);
+      n += t.count;
+    }
+    Arrays.sort(all);
+
+    System.out.println(String.format("%d requests in %.1f s: %.1f QPS", total, elapsed, total / elapsed));
+    if (total > 0) {
+      System.out.println(String.format("Latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+          percentile(all, 50), percentile(all, 90), percentile(all, 99), all[total - 1] / 1e6));
+    }
+    StringBuilder codes = new StringBuilder("Responses:");
+    for (int s = 0; s < statusCounts.length; s++) {
+      if (statusCounts[s] > 0) {
+        codes.append(' ').append(s).append(": ").append(statusCounts[s]);
+      }
+    }
+    if (errors > 0) {
+      codes.append(" connection errors: ").append(errors);
+    }
+    System.out.println(codes);
+  }
+
+  /** Percentile of sorted latencies, in milliseconds. */
+  private static double percentile(long[] sorted, double p) {
+    int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+  }
+
+  private static String[] loadQueries(String path) throws IOException {
+    List<String> queries = new ArrayList<String>();
+    File file = new File(path);
+    if (file.isDirectory()) {
+      String[] names = file.list();
+      Arrays.sort(names);
+      for (String name : names) {
+        if (name.endsWith(".txt")) {
+          queries.add(name.substring(0, name.length() - ".txt".length()));
+        }
+      }
+    } else {
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (line.trim().length() > 0) {
+            queries.add(line.trim());
+          }
+        }
+      } finally {
+        br.close();
+      }
+    }
+    return queries.toArray(new String[queries.size()]);
+  }
+}
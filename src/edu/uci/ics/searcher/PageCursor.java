@@ -0,0 +1,191 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+/**
+ * Position after the last hit of a result page, to fetch the next page with
+ * {@link IndexSearcher#searchAfter} instead of collecting all hits up to it.
+ * <p>
+ * A page request collects only the hits of that page, however deep it is.
+ * The cursor is passed around as an opaque token holding the score and
+ * docID of the last hit, the number of hits before the next page and the
+ * version of the reader it was made on. DocIDs change when the index does,
+ * so a token of another reader version is rejected.
+ */
+public class PageCursor {
+
+  /** A page of hits and the cursor of the page after it. */
+  public static class Page {
+    /** Hits of the page, best first. */
+    public final ScoreDoc[] hits;
+    /** Total number of matching documents. */
+    public final int totalHits;
+    /** Number of hits before this page. */
+    public final int offset;
+    /** Cursor of the next page, null if this is the last one. */
+    public final PageCursor next;
+
+    Page(ScoreDoc[] hits, int totalHits, int offset, PageCursor next) {
+      this.hits = hits;
+      this.totalHits = totalHits;
+      this.offset = offset;
+      this.next = next;
+    }
+  }
+
+  private final float score;
+  private final int doc;
+  private final int offset;
+  private final long readerVersion;
+
+  private PageCursor(float score, int doc, int offset, long readerVersion) {
+    this.score = score;
+    this.doc = doc;
+    this.offset = offset;
+    this.readerVersion = readerVersion;
+  }
+
+  /**
+   * Search one page of hits.
+   *
+   * @param searcher The searcher
+   * @param query The query
+   * @param after Cursor of the page, null for the first page
+   * @param hitsPerPage Number of hits per page
+   * @throws IllegalArgumentException If the cursor was made on another version of the index
+   */
+  public static Page search(IndexSearcher searcher, Query query, PageCursor after, int hitsPerPage)
+      throws IOException {
+    return search(searcher, query, after, 0, hitsPerPage, 0);
+  }
+
+  /**
+   * Search one page of hits, some pages after a cursor, within a time limit.
+   *
+   * @param searcher The searcher
+   * @param query The query
+   * @param after Cursor to start from, null for the first hit
+   * @param skip Number of hits to skip after the cursor
+   * @param hitsPerPage Number of hits per page
+   * @param timeoutMillis Time limit of the search, 0 for none
+   * @throws IllegalArgumentException If the cursor was made on another version of the index
+   * @throws TimeLimitingCollector.TimeExceededException If the search took longer than the time limit
+   */
+  public static Page search(IndexSearcher searcher, Query query, PageCursor after, int skip, int hitsPerPage,
+      long timeoutMillis) throws IOException {
+    long version = versionOf(searcher.getIndexReader());
+    ScoreDoc afterDoc = null;
+    int offset = skip;
+    if (after != null) {
+      if (after.readerVersion != version) {
+        throw new IllegalArgumentException("The index changed since this page was made, start over");
+      }
+      afterDoc = new ScoreDoc(after.doc, after.score);
+      offset += after.offset;
+    }
+
+    TopScoreDocCollector topCollector = TopScoreDocCollector.create(skip + hitsPerPage, afterDoc, false);
+    if (timeoutMillis > 0) {
+      TimeLimitingCollector limited = new TimeLimitingCollector(topCollector,
+          TimeLimitingCollector.getGlobalCounter(), timeoutMillis);
+      limited.setBaseline();
+      searcher.search(query, limited);
+    } else {
+      searcher.search(query, topCollector);
+    }
+    TopDocs results = topCollector.topDocs(skip, hitsPerPage);
+
+    ScoreDoc[] hits = results.scoreDocs;
+    PageCursor next = null;
+    if (hits.length > 0 && offset + hits.length < results.totalHits) {
+      ScoreDoc last = hits[hits.length - 1];
+      next = new PageCursor(last.score, last.doc, offset + hits.length, version);
+    }
+    return new Page(hits, results.totalHits, offset, next);
+  }
+
+  /** Version of a reader, -1 if it has none (then cursors are not checked). */
+  static long versionOf(IndexReader reader) {
+    if (reader instanceof DirectoryReader) {
+      return ((DirectoryReader) reader).getVersion();
+    }
+    // Over several indexes (shards): versions only grow, so their sum
+    // changes whenever one of them does
+    List<IndexReaderContext> children = reader.getContext().children();
+    if (children == null) {
+      return -1;
+    }
+    long sum = 0;
+    for (IndexReaderContext child : children) {
+      long version = versionOf(child.reader());
+      if (version < 0) {
+        return -1;
+      }
+      sum += version;
+    }
+    return sum;
+  }
+
+  /** Number of hits before the page of this cursor. */
+  public int getOffset() {
+    return offset;
+  }
+
+  /** The cursor as an opaque token. */
+  public String toToken() {
+    ByteBuffer buf = ByteBuffer.allocate(20);
+    buf.putLong(readerVersion).putInt(Float.floatToIntBits(score)).putInt(doc).putInt(offset);
+    StringBuilder sb = new StringBuilder(40);
+    for (byte b : buf.array()) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parse a token made by {@link #toToken()}.
+   *
+   * @throws IllegalArgumentException If the token is malformed
+   */
+  public static PageCursor fromToken(String token) {
+    if (token == null || token.length() != 40) {
+      throw new IllegalArgumentException("Bad page token " + token);
+    }
+    ByteBuffer buf = ByteBuffer.allocate(20);
+    for (int i = 0; i < 40; i += 2) {
+      int hi = Character.digit(token.charAt(i), 16);
+      int lo = Character.digit(token.charAt(i + 1), 16);
+      if (hi < 0 || lo < 0) {
+        throw new IllegalArgumentException("Bad page token " + token);
+      }
+      buf.put((byte) ((hi << 4) | lo));
+    }
+    buf.flip();
+    long version = buf.getLong();
+    float score = Float.intBitsToFloat(buf.getInt());
+    int doc = buf.getInt();
+    int offset = buf.getInt();
+    if (doc < 0 || offset < 0) {
+      throw new IllegalArgumentException("Bad page token " + token);
+    }
+    return new PageCursor(score, doc, offset, version);
+  }
+
+  @Override
+  public String toString() {
+    return toToken();
+  }
+}
@@ -0,0 +1,208 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+
+/**
+ * Builds the title/contents query of a search string.
+ * <p>
+ * The string is analyzed once with a shared analyzer (which reuses its token
+ * streams per thread) and the phrase and term clauses are built directly
+ * from the tokens. Built queries are kept in a bounded LRU cache keyed by the
+ * normalized search string; they are shared, so callers must not modify them.
+ * <p>
+ * For indexes with {@link ShingleFields}, two-word phrases are term queries
+ * on the shingle fields; longer phrases stay positional.
+ */
+public class QueryBuilder {
+
+  /** Default number of cached queries. */
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+
+  /** Analyzer used for all fields, thread-safe. */
+  static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40);
+
+  private final Map<String, Query> cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** A token of the search string. */
+  private static class Token {
+    final String text;
+    final int position;
+    final boolean inFirstWord;
+
+    Token(String text, int position, boolean inFirstWord) {
+      this.text = text;
+      this.position = position;
+      this.inFirstWord = inFirstWord;
+    }
+  }
+
+  /**
+   * @param cacheSize Maximum number of cached queries, 0 disables the cache
+   */
+  public QueryBuilder(final int cacheSize) {
+    this.cache = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Get the query of a search string.
+   *
+   * @param queryString The search string as typed by the user
+   * @throws IOException If the analyzer fails
+   */
+  public Query build(String queryString) throws IOException {
+    return build(queryString, false);
+  }
+
+  /**
+   * Get the query of a search string.
+   *
+   * @param queryString The search string as typed by the user
+   * @param shingles True if the index has shingle fields
+   * @throws IOException If the analyzer fails
+   */
+  public Query build(String queryString, boolean shingles) throws IOException {
+    String normalized = normalize(queryString);
+    String key = shingles ? "shingles:" + normalized : normalized;
+    synchronized (cache) {
+      Query query = cache.get(key);
+      if (query != null) {
+        hits.incrementAndGet();
+        return query;
+      }
+    }
+    misses.incrementAndGet();
+    Query query = buildQuery(normalized, shingles);
+    synchronized (cache) {
+      cache.put(key, query);
+    }
+    return query;
+  }
+
+  /**
+   * Build the query without going through the cache.
+   * <p>
+   * The clauses are the ones the former {@code BooleanQuery.toString()} and
+   * re-parse round trip produced, so rankings do not change: a phrase on
+   * contents and one on title (boost 2), a contents clause for every token,
+   * a title clause for the tokens of the first word, and a second contents
+   * clause for the tokens of the other words.
+   */
+  static Query buildQuery(String queryString) throws IOException {
+    return buildQuery(queryString, false);
+  }
+
+  /**
+   * Build the query without going through the cache.
+   *
+   * @param shingles True to look two-word phrases up in the shingle fields
+   */
+  static Query buildQuery(String queryString, boolean shingles) throws IOException {
+    List<Token> tokens = analyze(queryString);
+    BooleanQuery bq = new BooleanQuery();
+    if (tokens.isEmpty()) {
+      return bq;
+    }
+
+    bq.add(phrase("contents", tokens, 2.0f, shingles), BooleanClause.Occur.SHOULD);
+    bq.add(phrase("title", tokens, 2.0f, shingles), BooleanClause.Occur.SHOULD);
+    for (Token token : tokens) {
+      bq.add(new TermQuery(new Term("contents", token.text)), BooleanClause.Occur.SHOULD);
+    }
+    for (Token token : tokens) {
+      String field = token.inFirstWord ? "title" : "contents";
+      bq.add(new TermQuery(new Term(field, token.text)), BooleanClause.Occur.SHOULD);
+    }
+    return bq;
+  }
+
+  private static Query phrase(String field, List<Token> tokens, float boost, boolean shingles) {
+    Query query;
+    if (tokens.size() == 1) {
+      query = new TermQuery(new Term(field, tokens.get(0).text));
+    } else if (shingles && tokens.size() == ShingleFields.SIZE
+        && tokens.get(1).position == tokens.get(0).position + 1) {
+      query = new TermQuery(new Term(ShingleFields.field(field),
+          ShingleFields.shingle(tokens.get(0).text, tokens.get(1).text)));
+    } else {
+      PhraseQuery pq = new PhraseQuery();
+      for (Token token : tokens) {
+        pq.add(new Term(field, token.text), token.position);
+      }
+      query = pq;
+    }
+    query.setBoost(boost);
+    return query;
+  }
+
+  private static List<Token> analyze(String queryString) throws IOException {
+    int firstWordEnd = queryString.indexOf(' ');
+    if (firstWordEnd < 0) {
+      firstWordEnd = queryString.length();
+    }
+
+    List<Token> tokens = new ArrayList<Token>();
+    TokenStream ts = analyzer.tokenStream("contents", new StringReader(queryString));
+    CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+    OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+    try {
+      ts.reset();
+      int position = -1;
+      while (ts.incrementToken()) {
+        position += posIncAtt.getPositionIncrement();
+        tokens.add(new Token(termAtt.toString(), position, offsetAtt.startOffset() < firstWordEnd));
+      }
+      ts.end();
+    } finally {
+      ts.close();
+    }
+    return tokens;
+  }
+
+  /** Cache key of a search string: lower case, single spaces, trimmed. */
+  static String normalize(String queryString) {
+    return queryString.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+  }
+
+  public long getCacheHits() {
+    return hits.get();
+  }
+
+  public long getCacheMisses() {
+    return misses.get();
+  }
+
+  public int getCacheSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+}
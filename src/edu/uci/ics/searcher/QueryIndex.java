@@ -1,45 +1,74 @@
 package edu.uci.ics.searcher;
 
-import java.util.Hashtable;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
 
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Relevance evaluation of our ranking against oracle (Google) results.
+ * <p>
+ * Every {@code <query>.txt} file of the oracle directory holds the top
+ * results of one query, best first. The queries run concurrently on one
+ * shared searcher, and NDCG@k, MAP and MRR are reported together with the
+ * latency of every query.
+ */
 public class QueryIndex {
-  
-  private static Hashtable<String, QueryResults> OracleResults;
-  private static String ProjectPath = "/Users/yaocheng/git/edu.uci.ics.searcher/Searcher/";
-  private static String[] Queries = {"mondego", "machine learning", "software engineering", "security", "student affairs", "graduate courses",
-     "Crista Lopes", "REST", "computer games", "information retrieval"};
-  
+
+  private static String OracleDir = "query_results/";
+  private static String OutputDir = "our_query_results/";
+  private static String IndexPath = SearchFiles.DEFAULT_INDEX;
+  private static int K = 5;
+  private static int WarmupRounds = 1;
+
   static class QueryResults {
     private String[] urlList; // Search results
     private double[] DCGList; // List of DCG
-    private Hashtable<String, Integer> relList; // List of relevance
-    
-    // Constructor for oracle 
-    public QueryResults(String query) throws Exception {
-      this.urlList = new String[5];
-      this.DCGList = new double[5];
-      this.relList = new Hashtable<String, Integer>();
-      
+    private Map<String, Integer> relList; // List of relevance
+    private long latencyNanos; // Search time, for our results
+
+    // Constructor for oracle
+    public QueryResults(File oracleFile, int k) throws Exception {
+      this.urlList = new String[k];
+      this.DCGList = new double[k];
+      this.relList = new HashMap<String, Integer>();
+
       // Read oracle results from file
-      BufferedReader br = new BufferedReader(new FileReader(new File(ProjectPath+"query_results/"+query+".txt")));
-      for (int i = 0; i < 5; i++) {
-        String url = br.readLine().trim();
-        this.urlList[i] = url;
-        this.relList.put(url, 5-i); // The relevance is the ordering of results
-        this.DCGList[i] = this.computeDCG(i);
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(oracleFile), "UTF-8"));
+      try {
+        for (int i = 0; i < k; i++) {
+          String line = br.readLine();
+          if (line == null) {
+            throw new IOException(oracleFile + " has less than " + k + " results");
+          }
+          String url = line.trim();
+          this.urlList[i] = url;
+          this.relList.put(url, k-i); // The relevance is the ordering of results
+          this.DCGList[i] = this.computeDCG(i);
+        }
+      } finally {
+        br.close();
       }
-      br.close();
     }
-    
+
     // Constructor for our results
-    public QueryResults(String query, QueryResults oracle) throws Exception {
-      this.urlList = SearchFiles.getTopSearchResults(query, 5);
-      this.DCGList = new double[5];
-      this.relList = new Hashtable<String, Integer>();
-      
-      for (int i = 0; i < 5; i++) {
+    public QueryResults(IndexSearcher searcher, String query, QueryResults oracle) throws Exception {
+      int k = oracle.urlList.length;
+      long start = System.nanoTime();
+      this.urlList = SearchFiles.getTopSearchResults(searcher, query, k);
+      this.latencyNanos = System.nanoTime() - start;
+      this.DCGList = new double[k];
+      this.relList = new HashMap<String, Integer>();
+
+      for (int i = 0; i < k; i++) {
         String url = this.urlList[i];
         // Get rel rank from oracle
         int score = oracle.getRelOfUrl(url);
@@ -50,9 +79,9 @@ public class QueryIndex {
         }
         this.DCGList[i] = this.computeDCG(i);
       }
-      
+
     }
-    
+
     // Compute the DCG at a given position
     private double computeDCG(int pos) {
       double score = (double)this.relList.get(this.urlList[pos]);
@@ -63,13 +92,13 @@ public class QueryIndex {
         return this.DCGList[pos-1] + score / (Math.log(pos+1) / Math.log(2));
       }
     }
-    
+
     // Get the DCG at a given position
     public double getDCGAtPos(int pos) {
       assert pos < this.DCGList.length;
       return this.DCGList[pos];
     }
-    
+
     // If the url is not in search results, return -1
     public int getRelOfUrl(String url) {
       //System.out.println(url);
@@ -79,81 +108,206 @@ public class QueryIndex {
         return -1;
       }
     }
-    
+
+    // Average precision of our results, the oracle results being the relevant ones
+    public double getAveragePrecision(QueryResults oracle) {
+      int relevant = 0;
+      double sum = 0.0;
+      for (int i = 0; i < this.urlList.length; i++) {
+        if (oracle.getRelOfUrl(this.urlList[i]) > 0) {
+          relevant++;
+          sum += (double) relevant / (i+1);
+        }
+      }
+      return sum / Math.min(this.urlList.length, oracle.relList.size());
+    }
+
+    // Reciprocal rank of the first relevant result, 0 if there is none
+    public double getReciprocalRank(QueryResults oracle) {
+      for (int i = 0; i < this.urlList.length; i++) {
+        if (oracle.getRelOfUrl(this.urlList[i]) > 0) {
+          return 1.0 / (i+1);
+        }
+      }
+      return 0.0;
+    }
+
+    public double getLatencyMillis() {
+      return this.latencyNanos / 1e6;
+    }
+
     // For testing
     public void printUrls() {
       for (int i = 0; i < this.urlList.length; i++) {
         System.out.println("Url: "+this.urlList[i]+"\nRel: "+this.getRelOfUrl(this.urlList[i]));
       }
     }
-    
+
     public void writeResultsToFile(String filename) throws Exception {
-      BufferedWriter bw = new BufferedWriter(new FileWriter(new File(filename)));
+      BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"));
       for (String url: this.urlList) {
-        bw.write(url);
+        bw.write(url == null ? "" : url);
         bw.write("\n");
       }
       bw.close();
     }
 
   }
-  
-  public static void initGoogleResults() throws Exception {
-    OracleResults = new Hashtable<String, QueryResults>();
-    for (String query: Queries) {
-      QueryResults qr = new QueryResults(query);
-      OracleResults.put(query, qr);
-    }
-    
-    // For testing
-//    Enumeration<String> e = OracleResults.keys();
-//    while (e.hasMoreElements()) {
-//      String query = e.nextElement();
-//      QueryResults qr = OracleResults.get(query);
-//      System.out.println(query);
-//      qr.printUrls();
-//    }
+
+  /** Load the oracle results of every query of a directory, by query. */
+  public static Map<String, QueryResults> loadOracle(String oracleDir, int k) throws Exception {
+    File[] files = new File(oracleDir).listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".txt");
+      }
+    });
+    if (files == null) {
+      throw new FileNotFoundException("No oracle directory " + oracleDir);
+    }
+    if (files.length == 0) {
+      throw new FileNotFoundException("No oracle results (QUERY.txt files) in " + oracleDir);
+    }
+    Arrays.sort(files);
+    Map<String, QueryResults> oracle = new HashMap<String, QueryResults>();
+    for (File file : files) {
+      String query = file.getName().substring(0, file.getName().length() - ".txt".length());
+      oracle.put(query, new QueryResults(file, k));
+    }
+    return oracle;
   }
-  
-  
-  
-  public static double getNDCG5() throws Exception {
-    //initGoogleResults();
-    for (String query: Queries) {
-      System.out.print("NDCG@5 of "+query+": ");
-      QueryResults oracle = OracleResults.get(query);
-      QueryResults ours = new QueryResults(query, oracle);
-      ours.writeResultsToFile("/Users/yaocheng/git/edu.uci.ics.searcher/Searcher/our_query_results/"+query+".txt");
-      for (int i = 0; i < 5; i++) {
-        //System.out.print(ours.getDCGAtPos(i) + "/" + oracle.getDCGAtPos(i) + "=");
-        System.out.print(ours.getDCGAtPos(i) / oracle.getDCGAtPos(i));
-        System.out.print(" ");
+
+  /**
+   * Run every query of the oracle concurrently on the shared searcher of the
+   * index and print quality and latency per query and overall.
+   *
+   * @param oracle Oracle results by query
+   * @param executor Executor running the queries
+   * @return Mean NDCG@k over the queries
+   */
+  public static double evaluate(final Map<String, QueryResults> oracle, ExecutorService executor) throws Exception {
+    final SharedSearcher shared = SharedSearcher.get(IndexPath);
+    final IndexSearcher searcher = shared.acquire();
+    try {
+      List<String> queries = new ArrayList<String>(oracle.keySet());
+      java.util.Collections.sort(queries);
+
+      // Untimed rounds, so the latencies do not include loading the field caches
+      for (int round = 0; round < WarmupRounds; round++) {
+        List<Future<QueryResults>> warmup = new ArrayList<Future<QueryResults>>();
+        for (final String query : queries) {
+          warmup.add(executor.submit(new Callable<QueryResults>() {
+            public QueryResults call() throws Exception {
+              return new QueryResults(searcher, query, oracle.get(query));
+            }
+          }));
+        }
+        for (Future<QueryResults> f : warmup) {
+          f.get();
+        }
+      }
+
+      long start = System.nanoTime();
+      List<Future<QueryResults>> futures = new ArrayList<Future<QueryResults>>();
+      for (final String query : queries) {
+        futures.add(executor.submit(new Callable<QueryResults>() {
+          public QueryResults call() throws Exception {
+            return new QueryResults(searcher, query, oracle.get(query));
+          }
+        }));
       }
-      System.out.println();
+
+      double sumNDCG = 0, sumAP = 0, sumRR = 0;
+      double[] latencies = new double[queries.size()];
+      for (int q = 0; q < queries.size(); q++) {
+        String query = queries.get(q);
+        QueryResults ref = oracle.get(query);
+        QueryResults ours = futures.get(q).get();
+        if (OutputDir != null) {
+          ours.writeResultsToFile(OutputDir + query + ".txt");
+        }
+
+        StringBuilder line = new StringBuilder("NDCG@1.." + K + " of " + query + ": ");
+        for (int i = 0; i < K; i++) {
+          line.append(String.format("%.4f ", ours.getDCGAtPos(i) / ref.getDCGAtPos(i)));
+        }
+        double ndcg = ours.getDCGAtPos(K-1) / ref.getDCGAtPos(K-1);
+        double ap = ours.getAveragePrecision(ref);
+        double rr = ours.getReciprocalRank(ref);
+        line.append(String.format(" AP %.4f  RR %.4f  %.2f ms", ap, rr, ours.getLatencyMillis()));
+        System.out.println(line);
+
+        sumNDCG += ndcg;
+        sumAP += ap;
+        sumRR += rr;
+        latencies[q] = ours.getLatencyMillis();
+      }
+      double wallMillis = (System.nanoTime() - start) / 1e6;
+
+      int n = queries.size();
+      Arrays.sort(latencies);
+      System.out.println(String.format("%d queries: NDCG@%d %.4f  MAP %.4f  MRR %.4f", n, K, sumNDCG/n, sumAP/n, sumRR/n));
+      System.out.println(String.format("Latency: median %.2f ms, max %.2f ms; wall time %.2f ms",
+          latencies[n/2], latencies[n-1], wallMillis));
+      return sumNDCG / n;
+    } finally {
+      shared.release(searcher);
     }
-    return 1.0;
   }
-  
+
   private static void testSearch(String test, int num) throws Exception {
     String[] res = SearchFiles.getTopSearchResults(test, num);
     for (int i = 0; i < num; i++) {
       System.out.println(res[i]);
     }
   }
-  
-  private static void testSearch2() throws Exception {
-    String[] res = SearchFiles.getTopSearchResults("machine learning", 100);
-    for (int i = 0; i < res.length; i++) {
-      System.out.println(res[i]);
-    }
-  }
-  
+
   /**
    * @param args
    */
   public static void main(String[] args) throws Exception {
-    initGoogleResults();
-    getNDCG5();
+    String usage = "java edu.uci.ics.searcher.QueryIndex [-oracle DIR] [-out DIR|-noout] [-index INDEX_PATH]"
+                 + " [-k K] [-threads N] [-executor fixed|cached|serial] [-warmup ROUNDS]";
+    int threads = Runtime.getRuntime().availableProcessors();
+    String executorType = "fixed";
+    for (int i = 0; i < args.length; i++) {
+      if ("-oracle".equals(args[i])) {
+        OracleDir = args[++i];
+      } else if ("-out".equals(args[i])) {
+        OutputDir = args[++i];
+      } else if ("-noout".equals(args[i])) {
+        OutputDir = null;
+      } else if ("-index".equals(args[i])) {
+        IndexPath = args[++i];
+      } else if ("-k".equals(args[i])) {
+        K = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-warmup".equals(args[i])) {
+        WarmupRounds = Integer.parseInt(args[++i]);
+      } else if ("-executor".equals(args[i])) {
+        executorType = args[++i];
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+    if (!OracleDir.endsWith("/")) OracleDir += "/";
+    if (OutputDir != null && !OutputDir.endsWith("/")) OutputDir += "/";
+
+    ExecutorService executor;
+    if ("cached".equals(executorType)) {
+      // One thread per query
+      executor = Executors.newCachedThreadPool();
+    } else if ("serial".equals(executorType)) {
+      executor = Executors.newSingleThreadExecutor();
+    } else {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+    try {
+      evaluate(loadOracle(OracleDir, K), executor);
+    } finally {
+      executor.shutdown();
+    }
     //testSearch("uc irvine", 30);
   }
 }
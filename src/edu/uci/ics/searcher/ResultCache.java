@@ -0,0 +1,310 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Bounded cache of resolved search results, keyed by normalized search
+ * string and number of results.
+ * <p>
+ * Entries are evicted least recently used first when either the number of
+ * entries or their estimated size in bytes goes over its bound. The whole
+ * cache is dropped when a search comes in on a different reader (the index
+ * was reopened) or when the url boost rules change, since both change the
+ * ranking.
+ * <p>
+ * With {@code -Dsearch.cache.warmLog=FILE}, the cache of
+ * {@link SearchFiles#getTopSearchResults(String, int)} is filled with the
+ * most frequent searches of that query log when the index is first opened,
+ * for {@code -Dsearch.cache.warmK} results (5 by default).
+ */
+public class ResultCache {
+
+  /** Default maximum number of cached result lists. */
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  /** Default maximum estimated size of the cached result lists, in bytes. */
+  public static final long DEFAULT_MAX_COST = 16L * 1024 * 1024;
+
+  /** Query log the shared cache is warmed from when the index is first opened, null for none. */
+  static final String WARM_LOG = System.getProperty("search.cache.warmLog");
+
+  /** Number of results of the warming searches. */
+  static final int WARM_K = Integer.getInteger("search.cache.warmK", 5);
+
+  /** A cached result list. */
+  private static class Entry {
+    final String[] urls;
+    final long cost;
+
+    Entry(String key, String[] urls) {
+      this.urls = urls;
+      this.cost = cost(key, urls);
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxCost;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long cost;
+
+  // Ranking state the entries were computed with
+  private WeakReference<Object> readerKey = new WeakReference<Object>(null);
+  private long rulesVersion = -1;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  /**
+   * @param maxEntries Maximum number of cached result lists, 0 disables the cache
+   * @param maxCost Maximum estimated size of the cached result lists in bytes
+   */
+  public ResultCache(int maxEntries, long maxCost) {
+    this.maxEntries = maxEntries;
+    this.maxCost = maxCost;
+  }
+
+  /**
+   * Get the top results of a search, from the cache if possible.
+   *
+   * @param searcher Searcher to run the search on when it is not cached
+   * @param queryString The search string as typed by the user
+   * @param k Number of results
+   * @return The urls of the top results; slots past the last hit are null
+   */
+  public String[] get(IndexSearcher searcher, String queryString, int k) throws Exception {
+    IndexReader reader = searcher.getIndexReader();
+    String key = key(queryString, k);
+    synchronized (this) {
+      checkGeneration(reader);
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        return entry.urls.clone();
+      }
+      misses++;
+    }
+    String[] urls = SearchFiles.getTopSearchResults(searcher, queryString, k);
+    put(reader, key, urls.clone());
+    return urls;
+  }
+
+  private synchronized void put(IndexReader reader, String key, String[] urls) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    // A search that started before the cache moved on to a new reader or
+    // new rules has a stale result: drop it rather than the newer entries
+    if (readerKey.get() != reader.getCombinedCoreAndDeletesKey()
+        || rulesVersion != UrlBoostRules.current().getVersion()) {
+      return;
+    }
+    Entry entry = new Entry(key, urls);
+    if (entry.cost > maxCost) {
+      return;
+    }
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      cost -= old.cost;
+    }
+    cost += entry.cost;
+
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size() > maxEntries || cost > maxCost) {
+      Entry eldest = it.next();
+      it.remove();
+      cost -= eldest.cost;
+      evictions++;
+    }
+  }
+
+  /**
+   * Drop all entries if the reader or the boost rules differ from those they
+   * were computed with. Only lookups move the cache to a new generation.
+   */
+  private void checkGeneration(IndexReader reader) {
+    Object key = reader.getCombinedCoreAndDeletesKey();
+    long version = UrlBoostRules.current().getVersion();
+    if (readerKey.get() != key || rulesVersion != version) {
+      if (!entries.isEmpty()) {
+        invalidations++;
+      }
+      clear();
+      readerKey = new WeakReference<Object>(key);
+      rulesVersion = version;
+    }
+  }
+
+  /** Remove all entries. */
+  public synchronized void clear() {
+    entries.clear();
+    cost = 0;
+  }
+
+  /**
+   * Fill the cache with the most frequent searches of a query log.
+   *
+   * @param searcher Searcher to run the searches on
+   * @param logPath File with one search string per line
+   * @param k Number of results
+   * @return Number of searches run
+   */
+  public int warm(IndexSearcher searcher, String logPath, int k) throws Exception {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(logPath), "UTF-8"));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String query = QueryBuilder.normalize(line);
+        if (query.length() == 0) continue;
+        Integer count = counts.get(query);
+        counts.put(query, count == null ? 1 : count + 1);
+      }
+    } finally {
+      br.close();
+    }
+
+    List<String> queries = new ArrayList<String>(counts.keySet());
+    Collections.sort(queries, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return counts.get(b).compareTo(counts.get(a));
+      }
+    });
+    // Least frequent first, so the most frequent end up most recently used
+    int n = Math.min(queries.size(), maxEntries);
+    for (int i = n - 1; i >= 0; i--) {
+      get(searcher, queries.get(i), k);
+    }
+    return n;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Estimated size of the cached entries in bytes. */
+  public synchronized long getCost() {
+    return cost;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Number of times the cache was dropped because the reader or the rules changed. */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /** One-line summary of the cache metrics. */
+  public synchronized String getStats() {
+    long lookups = hits + misses;
+    return String.format("%d entries, %.1f KB; %d hits, %d misses (%.1f%% hits), %d evictions, %d invalidations",
+        entries.size(), cost / 1024.0, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+        evictions, invalidations);
+  }
+
+  private static String key(String queryString, int k) {
+    return QueryBuilder.normalize(queryString) + '\u0000' + k;
+  }
+
+  /** Rough heap size of an entry: strings, array and map entry overhead. */
+  private static long cost(String key, String[] urls) {
+    long cost = 96 + 2L * key.length() + 16 + 8L * urls.length;
+    for (String url : urls) {
+      if (url != null) {
+        cost += 48 + 2L * url.length();
+      }
+    }
+    return cost;
+  }
+
+  /**
+   * Replay a query log through a cache and print its metrics, e.g. to size
+   * the cache for the actual traffic.
+   */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.ResultCache -log QUERY_LOG [-index INDEX_PATH] [-k K]"
+                 + " [-entries N] [-cost BYTES] [-warm WARM_LOG]";
+    String index = SearchFiles.DEFAULT_INDEX;
+    String log = null;
+    String warmLog = null;
+    int k = 5;
+    int maxEntries = DEFAULT_MAX_ENTRIES;
+    long maxCost = DEFAULT_MAX_COST;
+    for (int i = 0; i < args.length; i++) {
+      if ("-log".equals(args[i])) {
+        log = args[++i];
+      } else if ("-index".equals(args[i])) {
+        index = args[++i];
+      } else if ("-k".equals(args[i])) {
+        k = Integer.parseInt(args[++i]);
+      } else if ("-entries".equals(args[i])) {
+        maxEntries = Integer.parseInt(args[++i]);
+      } else if ("-cost".equals(args[i])) {
+        maxCost = Long.parseLong(args[++i]);
+      } else if ("-warm".equals(args[i])) {
+        warmLog = args[++i];
+      }
+    }
+    if (log == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    ResultCache cache = new ResultCache(maxEntries, maxCost);
+    SharedSearcher shared = SharedSearcher.get(index);
+    IndexSearcher searcher = shared.acquire();
+    try {
+      if (warmLog != null) {
+        long start = System.nanoTime();
+        int n = cache.warm(searcher, warmLog, k);
+        System.out.println(String.format("Warmed %d queries in %.1f ms: %s",
+            n, (System.nanoTime() - start) / 1e6, cache.getStats()));
+      }
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+      int queries = 0;
+      long start = System.nanoTime();
+      try {
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (line.trim().length() == 0) continue;
+          cache.get(searcher, line, k);
+          queries++;
+        }
+      } finally {
+        br.close();
+      }
+      double millis = (System.nanoTime() - start) / 1e6;
+      System.out.println(String.format("Replayed %d queries in %.1f ms (%.3f ms/query): %s",
+          queries, millis, queries == 0 ? 0.0 : millis / queries, cache.getStats()));
+    } finally {
+      shared.release(searcher);
+      SharedSearcher.closeAll();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Turns hits into results, loading only the fields that are asked for.
+ * <p>
+ * Stored fields are read through a visitor that skips the other fields and
+ * stops as soon as it has what it needs, in docID order so the stored
+ * fields file is read front to back. Callers that only need urls get them
+ * from the {@link FieldCache} terms of the url field when the scorer loads
+ * those anyway, i.e. when it computes the boosts at search time (see
+ * {@link SegmentBoosts}). On an index with current stored priors (see
+ * {@link StaticPrior}) the scorer never loads them, and the few urls of a
+ * page are read as stored fields instead of holding every url of every
+ * segment in memory.
+ */
+public class ResultFetcher {
+
+  /** The url field alone. */
+  public static final Set<String> URL = Collections.singleton("url");
+
+  /** Fields of the result list of a search page. */
+  public static final Set<String> URL_AND_TITLE = Collections.unmodifiableSet(
+      new HashSet<String>(Arrays.asList("url", "title")));
+
+  /** A hit with the fields that were loaded; the others are null, or -1 for the length. */
+  public static class Result {
+    public final int doc;
+    public final float score;
+    public String url;
+    public String title;
+    public long length = -1;
+
+    Result(int doc, float score) {
+      this.doc = doc;
+      this.score = score;
+    }
+  }
+
+  private ResultFetcher() {}
+
+  /**
+   * Get the urls of the top hits.
+   *
+   * @param searcher Searcher the hits come from
+   * @param hits The hits, best first
+   * @param k Length of the returned array; slots past the last hit are null
+   */
+  public static String[] urls(IndexSearcher searcher, ScoreDoc[] hits, int k) throws IOException {
+    String[] urls = new String[k];
+    if (StaticPrior.isCurrent(searcher.getIndexReader())) {
+      Result[] results = fetch(searcher, hits, 0, k, URL);
+      for (int i = 0; i < results.length; i++) {
+        urls[i] = results[i].url;
+      }
+      return urls;
+    }
+    List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+    BytesRef spare = new BytesRef();
+    for (int i = 0; i < Math.min(k, hits.length); i++) {
+      AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(hits[i].doc, leaves));
+      FieldCache.DocTerms terms = FieldCache.DEFAULT.getTerms(leaf.reader(), "url");
+      urls[i] = terms.getTerm(hits[i].doc - leaf.docBase, spare).utf8ToString();
+    }
+    return urls;
+  }
+
+  /**
+   * Load some stored fields of a range of hits.
+   *
+   * @param searcher Searcher the hits come from
+   * @param hits The hits, best first
+   * @param from First hit to load
+   * @param to End of the range of hits to load, exclusive
+   * @param fields Names of the fields to load: any of url, title and length
+   * @return The results in the order of the hits
+   */
+  public static Result[] fetch(IndexSearcher searcher, final ScoreDoc[] hits, int from, int to,
+      Set<String> fields) throws IOException {
+    to = Math.min(to, hits.length);
+    if (from >= to) {
+      return new Result[0];
+    }
+    Result[] results = new Result[to - from];
+    Integer[] order = new Integer[to - from];
+    for (int i = 0; i < order.length; i++) {
+      results[i] = new Result(hits[from + i].doc, hits[from + i].score);
+      order[i] = i;
+    }
+    // Read in docID order
+    final Result[] byHit = results;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int da = byHit[a].doc, db = byHit[b].doc;
+        return da < db ? -1 : (da == db ? 0 : 1);
+      }
+    });
+    for (Integer i : order) {
+      searcher.doc(results[i].doc, new FieldSelector(fields, results[i]));
+    }
+    return results;
+  }
+
+  /** Visitor loading the selected fields of a document into a result. */
+  private static class FieldSelector extends StoredFieldVisitor {
+    private final Set<String> fields;
+    private final Result result;
+    private int remaining;
+
+    FieldSelector(Set<String> fields, Result result) {
+      this.fields = fields;
+      this.result = result;
+      this.remaining = fields.size();
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+      if (remaining == 0) {
+        return Status.STOP;
+      }
+      return fields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+      if (fieldInfo.name.equals("url")) {
+        result.url = value;
+      } else if (fieldInfo.name.equals("title")) {
+        result.title = value;
+      }
+      remaining--;
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) throws IOException {
+      if (fieldInfo.name.equals("length")) {
+        result.length = value;
+      }
+      remaining--;
+    }
+  }
+}
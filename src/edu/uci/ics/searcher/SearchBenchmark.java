@@ -0,0 +1,361 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Benchmarks of the indexing and search path over a synthetic index of
+ * configurable size: title extraction, document building, query building,
+ * the plain query, the custom scorer, two-phase search,
+ * {@code getTopSearchResults} end to end, top-k search on an index sorted
+ * by prior with and without early termination, and two-word phrases as
+ * positional phrase queries or shingle lookups, with the index size each
+ * needs, snippets of a result page from term vectors, and query completion
+ * lookups in dictionaries of 10k and 1M entries.
+ * <p>
+ * Usage: {@code java edu.uci.ics.searcher.SearchBenchmark [-docs N] [-warmup N]
+ * [-iterations N] [-time MILLIS] [-only NAME] [-format text|csv|json] [-out FILE]}
+ */
+public class SearchBenchmark {
+
+  private static final int NUM_QUERIES = 200;
+  private static final int NUM_HTML_FILES = 1000;
+  private static final int TOP_K = 5;
+  private static final int TWO_PHASE_WINDOW = 500;
+  private static final int PAGE_SIZE = 10;
+  private static final int[] SUGGEST_ENTRIES = { 10000, 1000000 };
+  private static final int NUM_SUGGESTIONS = 10;
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = 10000;
+    int warmup = 3;
+    int iterations = 5;
+    long millis = 1000;
+    String only = null;
+    String format = "text";
+    String out = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("-docs".equals(args[i])) {
+        numDocs = Integer.parseInt(args[++i]);
+      } else if ("-warmup".equals(args[i])) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("-time".equals(args[i])) {
+        millis = Long.parseLong(args[++i]);
+      } else if ("-only".equals(args[i])) {
+        only = args[++i];
+      } else if ("-format".equals(args[i])) {
+        format = args[++i];
+      } else if ("-out".equals(args[i])) {
+        out = args[++i];
+      } else {
+        System.err.println("Usage: java edu.uci.ics.searcher.SearchBenchmark [-docs N] [-warmup N]"
+            + " [-iterations N] [-time MILLIS] [-only NAME] [-format text|csv|json] [-out FILE]");
+        System.exit(1);
+      }
+    }
+
+    final String params = "docs=" + numDocs;
+    final SyntheticCorpus corpus = new SyntheticCorpus(numDocs, 20000, 42);
+    final String[] queryStrings = corpus.queries(NUM_QUERIES, 7);
+    BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis);
+
+    // Title extraction reads real files
+    if (selected(only, "html.getTitle")) {
+      File htmlDir = new File(System.getProperty("java.io.tmpdir"), "search-benchmark-" + System.nanoTime());
+      htmlDir.mkdirs();
+      final String[] htmlFiles = new String[Math.min(NUM_HTML_FILES, numDocs)];
+      for (int i = 0; i < htmlFiles.length; i++) {
+        File file = new File(htmlDir, i + ".html");
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+          fos.write(corpus.htmls[i]);
+        } finally {
+          fos.close();
+        }
+        htmlFiles[i] = file.getPath();
+      }
+      try {
+        runner.run("html.getTitle", params, 1, new BenchmarkRunner.Task() {
+          int i;
+          public Object run() {
+            return HtmlParser.getTitle(htmlFiles[i++ % htmlFiles.length]);
+          }
+        });
+      } finally {
+        for (String path : htmlFiles) {
+          new File(path).delete();
+        }
+        htmlDir.delete();
+      }
+    }
+
+    if (selected(only, "index.buildDoc")) {
+      final HtmlHead[] heads = new HtmlHead[Math.min(NUM_HTML_FILES, numDocs)];
+      for (int i = 0; i < heads.length; i++) {
+        heads[i] = corpus.head(i);
+      }
+      runner.run("index.buildDoc", params, 1, new BenchmarkRunner.Task() {
+        int i;
+        public Object run() throws Exception {
+          int doc = i++ % heads.length;
+          return IndexFiles.buildDoc(corpus.urls[doc], heads[doc], corpus.texts[doc], 0, "", 1.0f);
+        }
+      });
+    }
+
+    if (selected(only, "query.build")) {
+      runner.run("query.build", params, 1, new BenchmarkRunner.Task() {
+        int i;
+        public Object run() throws Exception {
+          return QueryBuilder.buildQuery(QueryBuilder.normalize(queryStrings[i++ % queryStrings.length]));
+        }
+      });
+    }
+
+    if (selected(only, "search.")) {
+      RAMDirectory dir = new RAMDirectory();
+      long start = System.nanoTime();
+      corpus.index(dir);
+      System.out.println(String.format("Indexed %d synthetic documents in %.0f ms",
+          numDocs, (System.nanoTime() - start) / 1e6));
+      final DirectoryReader reader = DirectoryReader.open(dir);
+      final IndexSearcher searcher = new IndexSearcher(reader);
+      final Query[] queries = new Query[queryStrings.length];
+      for (int i = 0; i < queries.length; i++) {
+        queries[i] = QueryBuilder.buildQuery(QueryBuilder.normalize(queryStrings[i]));
+      }
+      try {
+        if (selected(only, "search.boolean")) {
+          runner.run("search.boolean", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              return searcher.search(queries[i++ % queries.length], TOP_K);
+            }
+          });
+        }
+        if (selected(only, "search.customScore")) {
+          runner.run("search.customScore", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              return searcher.search(new SearchFiles.MyOwnScoreQuery(queries[i++ % queries.length]), TOP_K);
+            }
+          });
+        }
+        if (selected(only, "search.prior")) {
+          runner.run("search.prior", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              return searcher.search(StaticPrior.rankingQuery(reader, queries[i++ % queries.length]), TOP_K);
+            }
+          });
+        }
+        if (selected(only, "search.twoPhase")) {
+          runner.run("search.twoPhase", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              Query query = queries[i++ % queries.length];
+              return TwoPhaseSearch.search(searcher, query, StaticPrior.rankingQuery(reader, query), TOP_K,
+                  TWO_PHASE_WINDOW);
+            }
+          });
+        }
+        if (selected(only, "search.topResults")) {
+          runner.run("search.topResults", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              return SearchFiles.getTopSearchResults(searcher, queryStrings[i++ % queryStrings.length], TOP_K);
+            }
+          });
+        }
+      } finally {
+        reader.close();
+        dir.close();
+      }
+    }
+
+    if (selected(only, "sorted.")) {
+      RAMDirectory dir = new RAMDirectory();
+      corpus.index(dir, IndexProfile.SORTED);
+      final DirectoryReader reader = DirectoryReader.open(dir);
+      final IndexSearcher searcher = new IndexSearcher(reader);
+      final Query[] queries = new Query[queryStrings.length];
+      for (int i = 0; i < queries.length; i++) {
+        queries[i] = QueryBuilder.buildQuery(QueryBuilder.normalize(queryStrings[i]));
+      }
+      try {
+        if (selected(only, "sorted.exhaustive")) {
+          runner.run("sorted.exhaustive", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              return searcher.search(StaticPrior.rankingQuery(reader, queries[i++ % queries.length]), TOP_K);
+            }
+          });
+        }
+        if (selected(only, "sorted.earlyTermination")) {
+          runner.run("sorted.earlyTermination", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              Query query = queries[i++ % queries.length];
+              return EarlyTerminatingSearch.search(searcher, query, StaticPrior.rankingQuery(reader, query), TOP_K);
+            }
+          });
+          System.out.println("Early termination: " + EarlyTerminatingSearch.getStats());
+        }
+      } finally {
+        reader.close();
+        dir.close();
+      }
+    }
+
+    if (selected(only, "shingles.")) {
+      RAMDirectory plainDir = new RAMDirectory();
+      corpus.index(plainDir, IndexProfile.BULK_BUILD, false);
+      RAMDirectory shingleDir = new RAMDirectory();
+      corpus.index(shingleDir, IndexProfile.BULK_BUILD, true);
+      System.out.println(String.format("Index size: %.1f MB without shingles, %.1f MB with (+%.1f%%)",
+          plainDir.sizeInBytes() / (1024.0 * 1024.0), shingleDir.sizeInBytes() / (1024.0 * 1024.0),
+          100.0 * (shingleDir.sizeInBytes() - plainDir.sizeInBytes()) / plainDir.sizeInBytes()));
+      final DirectoryReader plainReader = DirectoryReader.open(plainDir);
+      final DirectoryReader shingleReader = DirectoryReader.open(shingleDir);
+      final IndexSearcher plainSearcher = new IndexSearcher(plainReader);
+      final IndexSearcher shingleSearcher = new IndexSearcher(shingleReader);
+      // Two-word queries, their contents phrase and whole query each way
+      List<Query[]> twoWord = new ArrayList<Query[]>();
+      for (String q : queryStrings) {
+        String normalized = QueryBuilder.normalize(q);
+        BooleanQuery positional = (BooleanQuery) QueryBuilder.buildQuery(normalized, false);
+        BooleanQuery shingled = (BooleanQuery) QueryBuilder.buildQuery(normalized, true);
+        if (positional.clauses().size() > 0 && positional.clauses().get(0).getQuery() instanceof PhraseQuery
+            && shingled.clauses().get(0).getQuery() instanceof TermQuery) {
+          twoWord.add(new Query[] { positional.clauses().get(0).getQuery(), shingled.clauses().get(0).getQuery(),
+              positional, shingled });
+        }
+      }
+      final Query[][] queries = twoWord.toArray(new Query[twoWord.size()][]);
+      try {
+        if (queries.length > 0) {
+          benchmarkShingles(runner, only, params, "shingles.phrase.positional", plainSearcher, queries, 0);
+          benchmarkShingles(runner, only, params, "shingles.phrase.shingle", shingleSearcher, queries, 1);
+          benchmarkShingles(runner, only, params, "shingles.query.positional", plainSearcher, queries, 2);
+          benchmarkShingles(runner, only, params, "shingles.query.shingle", shingleSearcher, queries, 3);
+        }
+      } finally {
+        plainReader.close();
+        shingleReader.close();
+        plainDir.close();
+        shingleDir.close();
+      }
+    }
+
+    if (selected(only, "snippets.")) {
+      RAMDirectory plainDir = new RAMDirectory();
+      corpus.index(plainDir, IndexProfile.BULK_BUILD, false, false);
+      RAMDirectory snippetDir = new RAMDirectory();
+      corpus.index(snippetDir, IndexProfile.BULK_BUILD, false, true);
+      System.out.println(String.format("Index size: %.1f MB without snippet fields, %.1f MB with (+%.1f%%)",
+          plainDir.sizeInBytes() / (1024.0 * 1024.0), snippetDir.sizeInBytes() / (1024.0 * 1024.0),
+          100.0 * (snippetDir.sizeInBytes() - plainDir.sizeInBytes()) / plainDir.sizeInBytes()));
+      plainDir.close();
+      final DirectoryReader reader = DirectoryReader.open(snippetDir);
+      final IndexSearcher searcher = new IndexSearcher(reader);
+      // The first result page of every query
+      final Query[] queries = new Query[queryStrings.length];
+      final ScoreDoc[][] pages = new ScoreDoc[queryStrings.length][];
+      for (int i = 0; i < queries.length; i++) {
+        queries[i] = QueryBuilder.buildQuery(QueryBuilder.normalize(queryStrings[i]));
+        pages[i] = searcher.search(StaticPrior.rankingQuery(reader, queries[i]), PAGE_SIZE).scoreDocs;
+      }
+      try {
+        if (selected(only, "snippets.fetch")) {
+          runner.run("snippets.fetch", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              ScoreDoc[] page = pages[i++ % pages.length];
+              return ResultFetcher.fetch(searcher, page, 0, page.length, ResultFetcher.URL_AND_TITLE);
+            }
+          });
+        }
+        if (selected(only, "snippets.page")) {
+          runner.run("snippets.page", params, 1, new BenchmarkRunner.Task() {
+            int i;
+            public Object run() throws Exception {
+              int q = i++ % pages.length;
+              return Snippets.HTML.forHits(searcher, queries[q], pages[q], 0, pages[q].length);
+            }
+          });
+          System.out.println("Snippets: " + Snippets.getStats());
+        }
+      } finally {
+        reader.close();
+        snippetDir.close();
+      }
+    }
+
+    if (selected(only, "suggest.lookup")) {
+      final String[] prefixes = corpus.prefixes(NUM_QUERIES, 11);
+      for (int entries : SUGGEST_ENTRIES) {
+        long start = System.nanoTime();
+        final Suggester suggester = Suggester.build(corpus.completions(entries, 13));
+        System.out.println(String.format("Built a completion dictionary of %d entries in %.0f ms",
+            entries, (System.nanoTime() - start) / 1e6));
+        runner.run("suggest.lookup", "entries=" + entries, 1, new BenchmarkRunner.Task() {
+          int i;
+          public Object run() {
+            return suggester.lookup(prefixes[i++ % prefixes.length], NUM_SUGGESTIONS);
+          }
+        });
+      }
+    }
+
+    if (!"text".equals(format)) {
+      Writer writer = out == null ? new PrintWriter(System.out)
+          : new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+      try {
+        if ("csv".equals(format)) {
+          runner.writeCsv(writer);
+        } else {
+          runner.writeJson(writer);
+        }
+      } finally {
+        if (out != null) {
+          writer.close();
+        }
+      }
+    }
+  }
+
+  /** Ranked search of one form of the two-word queries. */
+  private static void benchmarkShingles(BenchmarkRunner runner, String only, String params, String name,
+      final IndexSearcher searcher, final Query[][] queries, final int form) throws Exception {
+    if (!selected(only, name)) {
+      return;
+    }
+    runner.run(name, params, 1, new BenchmarkRunner.Task() {
+      int i;
+      public Object run() throws Exception {
+        Query query = queries[i++ % queries.length][form];
+        return searcher.search(StaticPrior.rankingQuery(searcher.getIndexReader(), query), TOP_K);
+      }
+    });
+  }
+
+  private static boolean selected(String only, String name) {
+    return only == null || name.startsWith(only) || only.startsWith(name);
+  }
+}
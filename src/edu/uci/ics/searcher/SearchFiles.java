@@ -22,11 +22,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
@@ -46,13 +47,21 @@ import org.apache.lucene.util.Version;
 import org.apache.lucene.queries.CustomScoreProvider;
 import org.apache.lucene.queries.CustomScoreQuery;
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.search.Explanation;
 //import org.apache.lucene.index.FieldInvertState;
 //import org.apache.lucene.search.similarities.Similarity;
 
 /** Simple command-line based search demo. */
 public class SearchFiles {
 
+  /** Index searched by {@link #getTopSearchResults(String, int)}. */
+  static final String DEFAULT_INDEX = "index";
+
+  /** Builds and caches the queries of {@link #myBooleanQuery(IndexReader, String)}. */
+  static final QueryBuilder queryBuilder = new QueryBuilder(QueryBuilder.DEFAULT_CACHE_SIZE);
+
+  /** Results of {@link #getTopSearchResults(String, int)}, dropped whenever the index is reopened. */
+  static final ResultCache resultCache = new ResultCache(ResultCache.DEFAULT_MAX_ENTRIES, ResultCache.DEFAULT_MAX_COST);
+
   private SearchFiles() {}
 
   /** Simple command-line based search demo. */
@@ -153,100 +162,109 @@ public class SearchFiles {
    * pages of size n to the user. The user can then go to the next page if interested in
    * the next hits.
    * 
-   * When the query is executed for the first time, then only enough results are collected
-   * to fill 5 result pages. If the user wants to page beyond this limit, then the query
-   * is executed another time and all hits are collected.
+   * Every page is fetched with a {@link PageCursor} of the page before it, so only the
+   * hits of the page shown are collected, however deep the user goes. The cursors of
+   * the pages visited so far are kept to go back or jump to an earlier page.
    * 
    */
   public static void doPagingSearch(BufferedReader in, IndexSearcher searcher, Query query, 
                                      int hitsPerPage, boolean raw, boolean interactive) throws IOException {
  
-    // Collect enough docs to show 5 pages
-    TopDocs results = searcher.search(query, 5 * hitsPerPage);
-    ScoreDoc[] hits = results.scoreDocs;
+    // Cursor of every page reached so far, null for the first one
+    List<PageCursor> cursors = new ArrayList<PageCursor>();
+    cursors.add(null);
     
-    int numTotalHits = results.totalHits;
+    PageCursor.Page page = PageCursor.search(searcher, query, null, hitsPerPage);
+    int numTotalHits = page.totalHits;
     System.out.println(numTotalHits + " total matching documents");
 
-    int start = 0;
-    int end = Math.min(numTotalHits, hitsPerPage);
-        
+    int pageNumber = 0;
     while (true) {
-      if (end > hits.length) {
-        System.out.println("Only results 1 - " + hits.length +" of " + numTotalHits + " total matching documents collected.");
-        System.out.println("Collect more (y/n) ?");
-        String line = in.readLine();
-        if (line.length() == 0 || line.charAt(0) == 'n') {
-          break;
-        }
-
-        hits = searcher.search(query, numTotalHits).scoreDocs;
+      if (page.next != null && cursors.size() == pageNumber + 1) {
+        cursors.add(page.next);
       }
       
-      end = Math.min(hits.length, start + hitsPerPage);
+      ScoreDoc[] hits = page.hits;
+      int start = page.offset;
       
-      for (int i = start; i < end; i++) {
+      // Load only the url and title of the rows shown, and their snippets
+      // if the index has snippet fields
+      ResultFetcher.Result[] rows = raw ? null : ResultFetcher.fetch(searcher, hits, 0, hits.length, ResultFetcher.URL_AND_TITLE);
+      String[] snippets = raw ? null : Snippets.TEXT.forHits(searcher, query, hits, 0, hits.length);
+      for (int i = 0; i < hits.length; i++) {
         if (raw) {                              // output raw format
           System.out.println("doc="+hits[i].doc+" score="+hits[i].score);
           continue;
         }
 
-        Document doc = searcher.doc(hits[i].doc);
-        String url = doc.get("url");
+        ResultFetcher.Result row = rows[i];
+        String url = row.url;
         if (url != null) {
-          System.out.println((i+1) + ". " + url);
-          String title = doc.get("title");
+          System.out.println((start+i+1) + ". " + url);
+          String title = row.title;
           if (title != null) {
-            System.out.println("   Title: " + doc.get("title"));
+            System.out.println("   Title: " + title);
+          }
+          if (snippets != null && snippets[i] != null) {
+            System.out.println("   " + snippets[i]);
           }
         } else {
-          System.out.println((i+1) + ". " + "No path for this document");
+          System.out.println((start+i+1) + ". " + "No path for this document");
         }
                   
       }
 
-      if (!interactive || end == 0) {
+      if (!interactive || hits.length == 0) {
         break;
       }
 
-      if (numTotalHits >= end) {
-        boolean quit = false;
-        while (true) {
-          System.out.print("Press ");
-          if (start - hitsPerPage >= 0) {
-            System.out.print("(p)revious page, ");  
-          }
-          if (start + hitsPerPage < numTotalHits) {
-            System.out.print("(n)ext page, ");
-          }
-          System.out.println("(q)uit or enter number to jump to a page.");
-          
-          String line = in.readLine();
-          if (line.length() == 0 || line.charAt(0)=='q') {
-            quit = true;
-            break;
+      int target = pageNumber;
+      boolean quit = false;
+      while (true) {
+        System.out.print("Press ");
+        if (pageNumber > 0) {
+          System.out.print("(p)revious page, ");  
+        }
+        if (page.next != null) {
+          System.out.print("(n)ext page, ");
+        }
+        System.out.println("(q)uit or enter number to jump to a page.");
+        
+        String line = in.readLine();
+        if (line == null || line.length() == 0 || line.charAt(0)=='q') {
+          quit = true;
+          break;
+        }
+        if (line.charAt(0) == 'p') {
+          target = Math.max(0, pageNumber - 1);
+          break;
+        } else if (line.charAt(0) == 'n') {
+          if (page.next != null) {
+            target = pageNumber + 1;
           }
-          if (line.charAt(0) == 'p') {
-            start = Math.max(0, start - hitsPerPage);
-            break;
-          } else if (line.charAt(0) == 'n') {
-            if (start + hitsPerPage < numTotalHits) {
-              start+=hitsPerPage;
-            }
+          break;
+        } else {
+          int number = Integer.parseInt(line);
+          if (number > 0 && (number - 1) * hitsPerPage < numTotalHits) {
+            target = number - 1;
             break;
           } else {
-            int page = Integer.parseInt(line);
-            if ((page - 1) * hitsPerPage < numTotalHits) {
-              start = (page - 1) * hitsPerPage;
-              break;
-            } else {
-              System.out.println("No such page");
-            }
+            System.out.println("No such page");
           }
         }
-        if (quit) break;
-        end = Math.min(numTotalHits, start + hitsPerPage);
       }
+      if (quit) break;
+      
+      // Walk forward from the last page reached, collecting one page at a time
+      while (cursors.size() <= target) {
+        PageCursor.Page skipped = PageCursor.search(searcher, query, cursors.get(cursors.size() - 1), hitsPerPage);
+        if (skipped.next == null) {
+          break;
+        }
+        cursors.add(skipped.next);
+      }
+      pageNumber = Math.min(target, cursors.size() - 1);
+      page = PageCursor.search(searcher, query, cursors.get(pageNumber), hitsPerPage);
     }
   }
 
@@ -259,143 +277,104 @@ public class SearchFiles {
     return query;
   }
   
-  private static Query myBooleanQuery(String query_string) throws Exception {
-    Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40);
-    BooleanQuery bq = new BooleanQuery();
-    
-    String[] query_tokens = query_string.trim().split(" ");
-    PhraseQuery contents_phrase_query = new PhraseQuery();
-    PhraseQuery title_phrase_query = new PhraseQuery();
-    for (int i = 0; i < query_tokens.length; i++) {
-      contents_phrase_query.add(new Term("contents", query_tokens[i]), i);
-      title_phrase_query.add(new Term("title", query_tokens[i]), i);
-    }
-    contents_phrase_query.setBoost(2.0f);
-    title_phrase_query.setBoost(2.0f);
-    bq.add(contents_phrase_query, BooleanClause.Occur.SHOULD);
-    bq.add(title_phrase_query, BooleanClause.Occur.SHOULD);
-    
-    TermQuery contents_term_query = new TermQuery(new Term("contents", query_string));
-    //contents_term_query.setBoost(1.5f);
-    bq.add(contents_term_query, BooleanClause.Occur.SHOULD);
-    TermQuery title_term_query = new TermQuery(new Term("title", query_string));
-    bq.add(title_term_query, BooleanClause.Occur.SHOULD);
-    
-    //TermQuery pub_query = new TermQuery(new Term("contents", "publications"));
-    //bq.add(pub_query, BooleanClause.Occur.SHOULD);
-    
-    //FuzzyQuery url_query = new FuzzyQuery(new Term("url", "www.ics.uci.edu"), 2);
-    //bq.add(url_query, BooleanClause.Occur.SHOULD);
-    
-    Query query = new QueryParser(Version.LUCENE_40, "contents", analyzer).parse(bq.toString());
-    return query;
+  static Query myBooleanQuery(IndexReader reader, String query_string) throws Exception {
+    // Two-word phrases are single terms if the index has shingle fields
+    return queryBuilder.build(query_string, ShingleFields.isIndexed(reader));
   }
   
   public static String[] getTopSearchResults(String query_string, int num_of_results) throws Exception {
-    // Read index
-    String index = "index";
-    IndexReader idxreader = DirectoryReader.open(FSDirectory.open(new File(index)));
-    
-    // Init searcher of the index
-    IndexSearcher searcher = new IndexSearcher(idxreader);
-    
-    // Set up query
-    Query query = myBooleanQuery(query_string);
-    
-    // Addition scoring query
-    CustomScoreQuery myCustomQuery = new MyOwnScoreQuery(query);
-    
-    //TopDocs results = searcher.search(query, num_of_results);
-    TopDocs results = searcher.search(myCustomQuery.createWeight(searcher).getQuery(), num_of_results);
-    ScoreDoc[] hits = results.scoreDocs;
-    
-    String[] top_results = new String[num_of_results];
-    for (int i = 0; i < num_of_results; i++) {
-      Document doc = searcher.doc(hits[i].doc);
-      String url = doc.get("url");
-      //System.out.println(url);
-      top_results[i] = url;
+    // Phase timings, null when metrics are disabled
+    SearchMetrics.Trace trace = SearchMetrics.begin(query_string);
+    try {
+      // Borrow the shared searcher of the index; it is opened once and
+      // refreshed in the background, so nothing is opened per query
+      SharedSearcher shared = SharedSearcher.get(DEFAULT_INDEX);
+      IndexSearcher searcher = shared.acquire();
+      if (trace != null) trace.mark(SearchMetrics.Phase.ACQUIRE);
+      try {
+        // Repeated searches are answered from the result cache
+        return resultCache.get(searcher, query_string, num_of_results);
+      } finally {
+        shared.release(searcher);
+      }
+    } finally {
+      SearchMetrics.end(trace);
+    }
+  }
+  
+  public static String[] getTopSearchResults(IndexSearcher searcher, String query_string, int num_of_results) throws Exception {
+    SearchMetrics.Trace trace = SearchMetrics.begin(query_string);
+    try {
+      // Set up query
+      Query query = myBooleanQuery(searcher.getIndexReader(), query_string);
+      
+      // Addition scoring query, with the static priors stored in the index
+      // if they are current
+      CustomScoreQuery myCustomQuery = StaticPrior.rankingQuery(searcher.getIndexReader(), query);
+      if (trace != null) trace.mark(SearchMetrics.Phase.BUILD);
+      
+      //TopDocs results = searcher.search(query, num_of_results);
+      // Only rescores the candidates of a cheap first pass if enabled, see
+      // TwoPhaseSearch; otherwise stops early on indexes sorted by static
+      // prior, see IndexProfile.SORTED
+      TopDocs results = TwoPhaseSearch.isEnabled()
+          ? TwoPhaseSearch.search(searcher, query, myCustomQuery, num_of_results)
+          : EarlyTerminatingSearch.search(searcher, query, myCustomQuery, num_of_results);
+      ScoreDoc[] hits = results.scoreDocs;
+      if (trace != null) {
+        trace.mark(SearchMetrics.Phase.SEARCH);
+        trace.hits(results.totalHits);
+      }
+      
+      // Only the urls are needed, they come from the field cache the scorer
+      // already loaded instead of the stored fields; slots past the last hit
+      // stay null
+      String[] urls = ResultFetcher.urls(searcher, hits, num_of_results);
+      if (trace != null) trace.mark(SearchMetrics.Phase.FETCH);
+      return urls;
+    } finally {
+      SearchMetrics.end(trace);
     }
-    return top_results;
   }
   
   static class MyOwnScoreQuery extends CustomScoreQuery {
-    private Query query;
 
     public MyOwnScoreQuery(Query query) {
         super(query);
-        this.query = query;
     }
-    public CustomScoreProvider getCustomScoreProvider(final AtomicReaderContext reader) {
+    
+    public CustomScoreProvider getCustomScoreProvider(final AtomicReaderContext reader) throws IOException {
+      // Factors of the whole segment are resolved once, so scoring a hit
+      // is a single array lookup without touching the stored document
+      final float[] boosts = SegmentBoosts.forSegment(reader.reader());
       return new CustomScoreProvider(reader) {
           @Override
-          public float customScore(int doc, float subQueryScore, float valSrcScore) throws IOException {
-              
-              float score = subQueryScore;
-              Document docObject = reader.reader().document(doc);
-
-              String url = docObject.get("url");
-              if (url.equals("http://www.ics.uci.edu/")) {
-                //score *= 15;
-              } else if (url.equals("http://www.ics.uci.edu/grad/")) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/grad/courses/") >= 0) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/grad/degrees/") >= 0) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/grad/admissions/") >= 0) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/grad/sao/") >= 0) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/ugrad/sao/") >= 0) {
-                score *= 2;
-              } else if (url.equals("http://www.ics.uci.edu/ugrad/")) {
-                score *= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/prospective/en/degrees/") >= 0) {
-                score *= 3;
-              } else if (url.indexOf("http://www.ics.uci.edu/faculty/") >= 0) {
-                score *= 1.5;
-              } else if (url.equals("http://archive.ics.uci.edu/ml/")) {
-                score *= 3;
-              } else if (url.equals("http://archive.ics.uci.edu/ml/datasets.html")) {
-                score *= 3;
-              } else if (url.indexOf("http://mlearn.ics.uci.edu/") >= 0) {
-                score *= 2;
-              } else if (url.equals("http://cml.ics.uci.edu/")) {
-                score *= 3;
-              } else if (url.indexOf("http://www.ics.uci.edu/~fielding/") >= 0) {
-                score *= 2;
-              } 
-              
-              else if (url.indexOf("http://luci.ics.uci.edu/blog/?") >= 0) {
-                score /= 5;
-              } else if (url.indexOf("http://cgvw.ics.uci.edu/?") >= 0) {
-                score /= 5;
-              } else if (url.indexOf("http://fano.ics.uci.edu/") >= 0) {
-                score /= 2;
-              } else if (url.indexOf("http://www.ics.uci.edu/~eppstein/pix/") >= 0) {
-                score /= 20; // REST
-              } else if (url.indexOf("http://vcp.ics.uci.edu/content/") >= 0) {
-                score /= 10; // REST
-              }
-              
-              
-              long len = Long.parseLong(docObject.get("length"));  
-              if (len <= 1500) {
-                if (!url.equals("http://mlearn.ics.uci.edu/")) {
-                  score /= (20/Math.log10(len));
-                  //score /= 3;
-                }
-              }
-              
-              IndexSearcher searcher = new IndexSearcher(reader.reader()); 
-              if (url.indexOf("http://www.ics.uci.edu/~johannab/the-rest.html") >= 0) {
-                Explanation exp = searcher.explain(query, doc);
-                //System.out.println(exp);
-              }
-              return score;
+          public float customScore(int doc, float subQueryScore, float valSrcScore) {
+              return subQueryScore * boosts[doc];
           }
       };
     }
+    
+    /**
+     * Query-independent factor of a document, from its url and length.
+     * 
+     * @param rules The url boost rules
+     * @param url The url of the document
+     * @param len The length of the content file
+     */
+    static float staticBoost(UrlBoostRules rules, String url, long len) {
+      UrlBoostRules.Rule rule = rules.match(url);
+      float score = rule == null ? 1.0f : rule.multiplier;
+      
+      if (len <= 1500) {
+        if (rule == null || !rule.noLengthPenalty) {
+          // Empty and one byte pages get the penalty of two bytes, which
+          // keeps the boost finite and positive
+          score /= (20/Math.log10(Math.max(len, 2)));
+          //score /= 3;
+        }
+      }
+      return score;
+    }
   }
 }
@@ -0,0 +1,299 @@
+package edu.uci.ics.searcher;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the time of a search goes: latency histograms of every phase and of
+ * the whole search, counters, and a log of slow searches.
+ * <p>
+ * A search is traced with {@link #begin(String)} and {@link #end(Trace)};
+ * in between, {@link Trace#mark(Phase)} charges the time since the previous
+ * mark to a phase. Nested begin/end pairs on the same thread (a search
+ * method calling another) share the outer trace. When metrics are disabled
+ * {@code begin} returns null and the only cost is a volatile read and null
+ * checks.
+ * <p>
+ * Metrics are enabled with {@code -Dsearch.metrics=true} or through JMX
+ * ({@link #registerMBean()}), and the slow query threshold is set with
+ * {@code -Dsearch.slowQueryMillis} (500 by default).
+ */
+public class SearchMetrics implements SearchMetricsMBean {
+
+  /** Phases of a search. */
+  public enum Phase {
+    /** Borrowing the searcher, opening or reopening the index. */
+    ACQUIRE,
+    /** Building the query from the search string. */
+    BUILD,
+    /** Matching, scoring and rescoring, and collecting the top hits. */
+    SEARCH,
+    /** Loading the urls or stored fields of the top hits. */
+    FETCH,
+    /** Cutting the snippets of the top hits, see {@link Snippets}. */
+    SNIPPETS
+  }
+
+  /** Timings of one search, confined to the thread running it. */
+  public static class Trace {
+    private final String query;
+    private final long start;
+    private long last;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private int depth;
+    private long totalHits;
+    private long docsLoaded;
+    private long docsNotVisited;
+
+    Trace(String query) {
+      this.query = query;
+      this.start = System.nanoTime();
+      this.last = start;
+    }
+
+    /** Charge the time since the previous mark to a phase. */
+    public void mark(Phase phase) {
+      long now = System.nanoTime();
+      phaseNanos[phase.ordinal()] += now - last;
+      last = now;
+    }
+
+    /** Count the hits that matched and were scored. */
+    public void hits(long totalHits) {
+      this.totalHits += totalHits;
+    }
+
+    /** Count the documents whose fields were loaded. */
+    public void docsLoaded(long docs) {
+      this.docsLoaded += docs;
+    }
+
+    /** Count the document ids early termination stopped before, matching or not. */
+    public void docsNotVisited(long docs) {
+      this.docsNotVisited += docs;
+    }
+  }
+
+  /** Number of slow queries kept for JMX. */
+  private static final int SLOW_QUERIES_KEPT = 100;
+
+  private static final SearchMetrics instance = new SearchMetrics();
+  private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+
+  private volatile boolean enabled = Boolean.getBoolean("search.metrics");
+  private volatile long slowQueryMillis = Long.getLong("search.slowQueryMillis", 500);
+
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+  private final AtomicLong hitsScored = new AtomicLong();
+  private final AtomicLong docsLoaded = new AtomicLong();
+  private final AtomicLong docsNotVisited = new AtomicLong();
+  private final ArrayDeque<String> slowQueries = new ArrayDeque<String>();
+  private ScheduledExecutorService dumper;
+
+  private SearchMetrics() {
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = new LatencyHistogram();
+    }
+  }
+
+  /** The metrics of this JVM. */
+  public static SearchMetrics get() {
+    return instance;
+  }
+
+  /**
+   * Start tracing a search on this thread, or join the trace already
+   * running on it.
+   *
+   * @return The trace, null if metrics are disabled
+   */
+  public static Trace begin(String query) {
+    if (!instance.enabled) {
+      return null;
+    }
+    Trace trace = current.get();
+    if (trace == null) {
+      trace = new Trace(query);
+      current.set(trace);
+    }
+    trace.depth++;
+    return trace;
+  }
+
+  /** The trace running on this thread, null if none. */
+  public static Trace current() {
+    return instance.enabled ? current.get() : null;
+  }
+
+  /** End a trace from {@link #begin(String)}; the outermost end records it. */
+  public static void end(Trace trace) {
+    if (trace == null || --trace.depth > 0) {
+      return;
+    }
+    current.remove();
+    instance.record(trace);
+  }
+
+  private void record(Trace trace) {
+    long elapsed = System.nanoTime() - trace.start;
+    total.record(elapsed);
+    for (int i = 0; i < phases.length; i++) {
+      if (trace.phaseNanos[i] > 0) {
+        phases[i].record(trace.phaseNanos[i]);
+      }
+    }
+    hitsScored.addAndGet(trace.totalHits);
+    docsLoaded.addAndGet(trace.docsLoaded);
+    docsNotVisited.addAndGet(trace.docsNotVisited);
+
+    if (elapsed >= slowQueryMillis * 1000000L) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%tFT%<tT %.1f ms \"%s\" hits=%d", new Date(), elapsed / 1e6, trace.query,
+          trace.totalHits));
+      for (Phase phase : Phase.values()) {
+        sb.append(String.format(" %s=%.1f", phase.name().toLowerCase(), trace.phaseNanos[phase.ordinal()] / 1e6));
+      }
+      String entry = sb.toString();
+      System.err.println("Slow query: " + entry);
+      synchronized (slowQueries) {
+        if (slowQueries.size() == SLOW_QUERIES_KEPT) {
+          slowQueries.removeFirst();
+        }
+        slowQueries.addLast(entry);
+      }
+    }
+  }
+
+  /** Register the metrics as MBean {@code edu.uci.ics.searcher:type=SearchMetrics}, once. */
+  public static synchronized void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("edu.uci.ics.searcher:type=SearchMetrics");
+      if (!server.isRegistered(name)) {
+        server.registerMBean(instance, name);
+      }
+    } catch (Exception e) {
+      System.err.println("Registering the search metrics MBean failed: " + e.getMessage());
+    }
+  }
+
+  /** Print {@link #dump()} to standard output every few seconds. */
+  public synchronized void startDump(long seconds) {
+    if (dumper != null) {
+      return;
+    }
+    dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "search-metrics-dump");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    dumper.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        System.out.print(dump());
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public long getSlowQueryMillis() {
+    return slowQueryMillis;
+  }
+
+  public void setSlowQueryMillis(long millis) {
+    this.slowQueryMillis = millis;
+  }
+
+  public long getQueries() {
+    return total.getCount();
+  }
+
+  public long getHitsScored() {
+    return hitsScored.get();
+  }
+
+  public long getDocsLoaded() {
+    return docsLoaded.get();
+  }
+
+  public long getDocsNotVisited() {
+    return docsNotVisited.get();
+  }
+
+  public long getResultCacheHits() {
+    return SearchFiles.resultCache.getHits();
+  }
+
+  public long getResultCacheMisses() {
+    return SearchFiles.resultCache.getMisses();
+  }
+
+  public double getP50Millis() {
+    return total.getPercentileMillis(50);
+  }
+
+  public double getP99Millis() {
+    return total.getPercentileMillis(99);
+  }
+
+  public double getMaxMillis() {
+    return total.getMaxMillis();
+  }
+
+  public String[] getPhaseSummaries() {
+    String[] summaries = new String[phases.length];
+    for (Phase phase : Phase.values()) {
+      summaries[phase.ordinal()] = phase.name().toLowerCase() + ": " + phases[phase.ordinal()].summary();
+    }
+    return summaries;
+  }
+
+  public String[] getSlowQueries() {
+    synchronized (slowQueries) {
+      return slowQueries.toArray(new String[slowQueries.size()]);
+    }
+  }
+
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Search metrics at %tT%n", new Date()));
+    sb.append("  total: ").append(total.summary()).append('\n');
+    for (String summary : getPhaseSummaries()) {
+      sb.append("  ").append(summary).append('\n');
+    }
+    sb.append(String.format("  hits scored %d, docs not visited %d, docs loaded %d, result cache %s%n",
+        getHitsScored(), getDocsNotVisited(), getDocsLoaded(), SearchFiles.resultCache.getStats()));
+    return sb.toString();
+  }
+
+  public void reset() {
+    total.reset();
+    for (LatencyHistogram phase : phases) {
+      phase.reset();
+    }
+    hitsScored.set(0);
+    docsLoaded.set(0);
+    docsNotVisited.set(0);
+    synchronized (slowQueries) {
+      slowQueries.clear();
+    }
+  }
+}
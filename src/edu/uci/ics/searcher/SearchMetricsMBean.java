@@ -0,0 +1,43 @@
+package edu.uci.ics.searcher;
+
+/** JMX view of {@link SearchMetrics}. */
+public interface SearchMetricsMBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  long getSlowQueryMillis();
+
+  void setSlowQueryMillis(long millis);
+
+  long getQueries();
+
+  long getHitsScored();
+
+  long getDocsLoaded();
+
+  /** Document ids early termination stopped before, matching or not. */
+  long getDocsNotVisited();
+
+  long getResultCacheHits();
+
+  long getResultCacheMisses();
+
+  double getP50Millis();
+
+  double getP99Millis();
+
+  double getMaxMillis();
+
+  /** One line per phase: count, mean and percentiles. */
+  String[] getPhaseSummaries();
+
+  /** The most recent slow queries, newest last. */
+  String[] getSlowQueries();
+
+  /** The whole text dump. */
+  String dump();
+
+  void reset();
+}
@@ -0,0 +1,456 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP/JSON search service on the JDK's built-in HTTP server.
+ * <p>
+ * {@code GET /search?q=QUERY&k=K&page=N} returns page N (from 1) of K hits
+ * ranked like {@link SearchFiles#getTopSearchResults(String, int)}, with the
+ * url, title and score of every hit and a {@code next} token; passing it
+ * back as {@code cursor=TOKEN} fetches the following page without collecting
+ * the ones before it. If the index has snippet fields, every hit also has
+ * a snippet of its contents with the query terms in bold. {@code GET /suggest?q=PREFIX&k=K} returns the top K
+ * completions of a query prefix from the dictionary of the index (see
+ * {@link Suggester}). {@code GET /stats} returns the server, searcher and
+ * cache counters.
+ * <p>
+ * Searches run on a fixed pool of workers. At most a configured number of
+ * requests are admitted at once, the others get 503 right away, and a search
+ * that does not finish within the timeout gets 504. A search that timed out
+ * while running keeps its admission until it ends, so searches still
+ * running do not pile up behind new ones.
+ */
+public class SearchServer {
+
+  public static final int DEFAULT_PORT = 8080;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+  /** Deepest hit that can be reached with a page number; deeper pages need a cursor. */
+  public static final int MAX_RESULT_WINDOW = 1000;
+  public static final int MAX_K = 100;
+
+  private final HttpServer server;
+  private final SharedSearcher shared;
+  private final ExecutorService workers;
+  private final ExecutorService acceptors;
+  private final Semaphore admission;
+  private final int maxInFlight;
+  private final long timeoutMillis;
+
+  // Request counters
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong suggestions = new AtomicLong();
+
+  /**
+   * @param port Port to listen on
+   * @param indexPath Path of the index
+   * @param numWorkers Number of threads running searches
+   * @param maxInFlight Maximum number of requests admitted at once
+   * @param timeoutMillis Time limit of a request
+   */
+  public SearchServer(int port, String indexPath, int numWorkers, int maxInFlight, long timeoutMillis)
+      throws IOException {
+    this.shared = SharedSearcher.get(indexPath);
+    this.workers = Executors.newFixedThreadPool(numWorkers, threadFactory("search-worker"));
+    this.acceptors = Executors.newCachedThreadPool(threadFactory("search-http"));
+    this.admission = new Semaphore(maxInFlight);
+    this.maxInFlight = maxInFlight;
+    this.timeoutMillis = timeoutMillis;
+
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/search", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleSearch(exchange);
+      }
+    });
+    server.createContext("/suggest", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleSuggest(exchange);
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        send(exchange, 200, getStatsJson());
+      }
+    });
+    server.setExecutor(acceptors);
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /** Stop accepting requests, wait up to a second for the running ones. */
+  public void stop() {
+    server.stop(1);
+    workers.shutdownNow();
+    acceptors.shutdownNow();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private void handleSearch(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    if (!admission.tryAcquire()) {
+      rejected.incrementAndGet();
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      send(exchange, 503, error("Too many requests in flight"));
+      return;
+    }
+    // Once the search is submitted, whoever ends it releases the admission
+    boolean submitted = false;
+    try {
+      final Map<String, String> params = params(exchange);
+      if (params == null) {
+        return;
+      }
+      final String q = params.get("q");
+      if (q == null || q.trim().length() == 0) {
+        send(exchange, 400, error("Missing parameter q"));
+        return;
+      }
+      final int k;
+      final int page;
+      final PageCursor cursor;
+      try {
+        k = params.containsKey("k") ? Integer.parseInt(params.get("k")) : 10;
+        page = params.containsKey("page") ? Integer.parseInt(params.get("page")) : 1;
+        cursor = params.containsKey("cursor") ? PageCursor.fromToken(params.get("cursor")) : null;
+      } catch (IllegalArgumentException e) {
+        send(exchange, 400, error(e.getMessage()));
+        return;
+      }
+      if (k < 1 || k > MAX_K || page < 1 || (cursor == null && (long) page * k > MAX_RESULT_WINDOW)) {
+        send(exchange, 400, error("k must be 1.." + MAX_K + " and page * k at most " + MAX_RESULT_WINDOW
+            + "; use the next cursor to go deeper"));
+        return;
+      }
+
+      final AtomicBoolean started = new AtomicBoolean();
+      Future<String> result = workers.submit(new Callable<String>() {
+        public String call() throws Exception {
+          if (!started.compareAndSet(false, true)) {
+            // Timed out in the queue, the admission is already released
+            return null;
+          }
+          try {
+            return search(q, k, page, cursor);
+          } finally {
+            admission.release();
+          }
+        }
+      });
+      submitted = true;
+      try {
+        send(exchange, 200, result.get(timeoutMillis, TimeUnit.MILLISECONDS));
+      } catch (TimeoutException e) {
+        if (started.compareAndSet(false, true)) {
+          // Still in the queue: it will not run
+          admission.release();
+          result.cancel(false);
+        }
+        // A running search is not interrupted, which inside Lucene I/O would
+        // close the channels of an NIOFSDirectory for every later search. It
+        // is stopped by its time limit and holds its admission until then.
+        timedOut.incrementAndGet();
+        send(exchange, 504, error("Search timed out"));
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof TimeLimitingCollector.TimeExceededException) {
+          timedOut.incrementAndGet();
+          send(exchange, 504, error("Search timed out"));
+        } else if (cause instanceof IllegalArgumentException) {
+          send(exchange, 400, error(cause.getMessage()));
+        } else {
+          failed.incrementAndGet();
+          System.err.println("Search for " + q + " failed: " + cause);
+          send(exchange, 500, error("Search failed"));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        send(exchange, 503, error("Interrupted"));
+      }
+    } finally {
+      if (!submitted) {
+        admission.release();
+      }
+    }
+  }
+
+  /**
+   * Completions of a prefix, looked up on the HTTP thread: they take well
+   * under a millisecond and do not touch the index, so they are neither
+   * queued behind searches nor counted against the admission limit.
+   */
+  private void handleSuggest(HttpExchange exchange) throws IOException {
+    suggestions.incrementAndGet();
+    Map<String, String> params = params(exchange);
+    if (params == null) {
+      return;
+    }
+    String q = params.get("q");
+    if (q == null || q.trim().length() == 0) {
+      send(exchange, 400, error("Missing parameter q"));
+      return;
+    }
+    int k;
+    try {
+      k = params.containsKey("k") ? Integer.parseInt(params.get("k")) : 10;
+    } catch (NumberFormatException e) {
+      send(exchange, 400, error(e.getMessage()));
+      return;
+    }
+    if (k < 1 || k > MAX_K) {
+      send(exchange, 400, error("k must be 1.." + MAX_K));
+      return;
+    }
+    Suggester suggester = shared.getSuggester();
+    if (suggester == null) {
+      send(exchange, 404, error("The index has no completion dictionary; build it with IndexFiles -suggest"));
+      return;
+    }
+    List<LookupResult> completions = suggester.lookup(q, k);
+    StringBuilder sb = new StringBuilder(64 + completions.size() * 64);
+    sb.append("{\"prefix\":").append(quote(q));
+    sb.append(",\"suggestions\":[");
+    for (int i = 0; i < completions.size(); i++) {
+      if (i > 0) sb.append(',');
+      sb.append("{\"text\":").append(quote(completions.get(i).key.toString()));
+      sb.append(",\"weight\":").append(number(Suggester.weightOf(completions.get(i)))).append('}');
+    }
+    sb.append("]}");
+    send(exchange, 200, sb.toString());
+  }
+
+  /** Run a search and render its result page as JSON. */
+  private String search(String q, int k, int page, PageCursor cursor) throws Exception {
+    SearchMetrics.Trace trace = SearchMetrics.begin(q);
+    IndexSearcher searcher = shared.acquire();
+    try {
+      if (trace != null) trace.mark(SearchMetrics.Phase.ACQUIRE);
+      IndexReader reader = searcher.getIndexReader();
+      Query textQuery = SearchFiles.myBooleanQuery(reader, q);
+      Query query = StaticPrior.rankingQuery(reader, textQuery);
+      if (trace != null) trace.mark(SearchMetrics.Phase.BUILD);
+      int skip = cursor == null ? (page - 1) * k : 0;
+      PageCursor.Page result = PageCursor.search(searcher, query, cursor, skip, k, timeoutMillis);
+      if (trace != null) {
+        trace.mark(SearchMetrics.Phase.SEARCH);
+        trace.hits(result.totalHits);
+      }
+      ResultFetcher.Result[] rows = ResultFetcher.fetch(searcher, result.hits, 0, result.hits.length,
+          ResultFetcher.URL_AND_TITLE);
+      if (trace != null) {
+        trace.mark(SearchMetrics.Phase.FETCH);
+        trace.docsLoaded(rows.length);
+      }
+      String[] snippets = Snippets.HTML.forHits(searcher, textQuery, result.hits, 0, result.hits.length);
+      if (trace != null && snippets != null) trace.mark(SearchMetrics.Phase.SNIPPETS);
+
+      StringBuilder sb = new StringBuilder(256 + rows.length * 128);
+      sb.append("{\"query\":").append(quote(q));
+      sb.append(",\"totalHits\":").append(result.totalHits);
+      sb.append(",\"offset\":").append(result.offset);
+      sb.append(",\"results\":[");
+      for (int i = 0; i < rows.length; i++) {
+        if (i > 0) sb.append(',');
+        sb.append("{\"rank\":").append(result.offset + i + 1);
+        sb.append(",\"url\":").append(quote(rows[i].url));
+        sb.append(",\"title\":").append(quote(rows[i].title));
+        if (snippets != null) {
+          sb.append(",\"snippet\":").append(quote(snippets[i]));
+        }
+        sb.append(",\"score\":").append(number(rows[i].score)).append('}');
+      }
+      sb.append("],\"next\":").append(result.next == null ? "null" : quote(result.next.toToken()));
+      sb.append('}');
+      return sb.toString();
+    } finally {
+      shared.release(searcher);
+      SearchMetrics.end(trace);
+    }
+  }
+
+  /** Server, searcher and cache counters as JSON. */
+  public String getStatsJson() {
+    return "{\"requests\":" + requests.get()
+        + ",\"rejected\":" + rejected.get()
+        + ",\"timedOut\":" + timedOut.get()
+        + ",\"failed\":" + failed.get()
+        + ",\"suggestions\":" + suggestions.get()
+        + ",\"inFlight\":" + (maxInFlight - admission.availablePermits())
+        + ",\"searcher\":" + quote(shared.getStats())
+        + ",\"metrics\":" + quote(SearchMetrics.get().dump())
+        + ",\"snippets\":" + quote(Snippets.getStats())
+        + ",\"queryCache\":" + quote(SearchFiles.queryBuilder.getCacheHits() + " hits, "
+            + SearchFiles.queryBuilder.getCacheMisses() + " misses")
+        + "}";
+  }
+
+  private static String error(String message) {
+    return "{\"error\":" + quote(message) + "}";
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream os = exchange.getResponseBody();
+    try {
+      os.write(bytes);
+    } finally {
+      os.close();
+    }
+  }
+
+  /** Parameters of a request, or null once it is answered with 400 for a malformed escape. */
+  private static Map<String, String> params(HttpExchange exchange) throws IOException {
+    try {
+      return parseQuery(exchange.getRequestURI().getRawQuery());
+    } catch (IllegalArgumentException e) {
+      send(exchange, 400, error("Malformed query string: " + e.getMessage()));
+      return null;
+    }
+  }
+
+  static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (rawQuery == null) {
+      return params;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq <= 0) continue;
+      params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  /** JSON number of a value, null if it is infinite or NaN, which JSON cannot represent. */
+  static String number(double d) {
+    return Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(d);
+  }
+
+  static String number(float f) {
+    return Float.isNaN(f) || Float.isInfinite(f) ? "null" : String.valueOf(f);
+  }
+
+  /** JSON string literal of a value, null if there is none. */
+  static String quote(String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.SearchServer [-port PORT] [-index INDEX_PATH] [-threads N]"
+                 + " [-max-inflight N] [-timeout MILLIS] [-no-metrics] [-metrics-dump SECONDS]";
+    int port = DEFAULT_PORT;
+    String index = SearchFiles.DEFAULT_INDEX;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int maxInFlight = -1;
+    long timeout = DEFAULT_TIMEOUT_MILLIS;
+    boolean metrics = true;
+    long dumpSeconds = 0;
+    for (int i = 0; i < args.length; i++) {
+      if ("-port".equals(args[i])) {
+        port = Integer.parseInt(args[++i]);
+      } else if ("-index".equals(args[i])) {
+        index = args[++i];
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-max-inflight".equals(args[i])) {
+        maxInFlight = Integer.parseInt(args[++i]);
+      } else if ("-timeout".equals(args[i])) {
+        timeout = Long.parseLong(args[++i]);
+      } else if ("-no-metrics".equals(args[i])) {
+        metrics = false;
+      } else if ("-metrics-dump".equals(args[i])) {
+        dumpSeconds = Long.parseLong(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+    if (maxInFlight < 0) {
+      // Enough to keep every worker busy with a short queue behind it
+      maxInFlight = threads * 4;
+    }
+
+    // Phase timings and slow query log, readable through JMX and /stats
+    SearchMetrics.get().setEnabled(metrics);
+    SearchMetrics.registerMBean();
+    if (dumpSeconds > 0) {
+      SearchMetrics.get().startDump(dumpSeconds);
+    }
+
+    SearchServer server = new SearchServer(port, index, threads, maxInFlight, timeout);
+    server.start();
+    System.out.println("Searching " + index + " on port " + server.getPort() + " with " + threads
+        + " workers, at most " + maxInFlight + " requests in flight, timeout " + timeout + " ms");
+  }
+}
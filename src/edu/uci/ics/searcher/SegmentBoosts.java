@@ -0,0 +1,75 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Query-independent score factors (url boosts, the short document penalty
+ * and the url depth penalty), computed once per index segment: the
+ * {@link StaticPrior} of the documents, without links, for indexes that do
+ * not store current priors.
+ * <p>
+ * The factors only depend on the stored url and length of a document, so
+ * instead of loading every matching document while scoring, the whole
+ * segment is resolved once through the {@link FieldCache} into a
+ * {@code float[]} indexed by docID. Entries are keyed by the segment core,
+ * so they are shared between reopened readers and dropped together with
+ * the segment. They are recomputed when the {@link UrlBoostRules} change.
+ */
+class SegmentBoosts {
+
+  private static final Map<Object, SegmentBoosts> cache = new WeakHashMap<Object, SegmentBoosts>();
+
+  private final long rulesVersion;
+  private final float[] boosts;
+
+  private SegmentBoosts(long rulesVersion, float[] boosts) {
+    this.rulesVersion = rulesVersion;
+    this.boosts = boosts;
+  }
+
+  /**
+   * Get the score factor of every document in a segment.
+   *
+   * @param reader A segment reader
+   * @return Array of factors indexed by docID
+   * @throws IOException If the url or length field cannot be read
+   */
+  static float[] forSegment(AtomicReader reader) throws IOException {
+    UrlBoostRules rules = UrlBoostRules.current();
+    Object key = reader.getCoreCacheKey();
+    synchronized (cache) {
+      SegmentBoosts cached = cache.get(key);
+      if (cached != null && cached.rulesVersion == rules.getVersion()) {
+        return cached.boosts;
+      }
+    }
+    // Computed outside the lock; two threads may race on a new segment, the
+    // results are identical so the last one simply wins
+    float[] boosts = compute(reader);
+    synchronized (cache) {
+      cache.put(key, new SegmentBoosts(rules.getVersion(), boosts));
+    }
+    return boosts;
+  }
+
+  private static float[] compute(AtomicReader reader) throws IOException {
+    StaticPrior prior = StaticPrior.current();
+    int maxDoc = reader.maxDoc();
+    FieldCache.DocTerms urls = FieldCache.DEFAULT.getTerms(reader, "url");
+    long[] lengths = FieldCache.DEFAULT.getLongs(reader, "length", FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+
+    float[] boosts = new float[maxDoc];
+    BytesRef spare = new BytesRef();
+    for (int doc = 0; doc < maxDoc; doc++) {
+      String url = urls.getTerm(doc, spare).utf8ToString();
+      boosts[doc] = prior.compute(url, lengths[doc]);
+    }
+    return boosts;
+  }
+}
@@ -0,0 +1,205 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Partitioning of the url table into shards, each an index of its own in a
+ * {@code shard-N} subdirectory of the index directory.
+ * <p>
+ * A url goes to a shard by the hash of the whole url, or of its host so a
+ * site stays together. The shards are searched as one {@link MultiReader},
+ * so term statistics and scores are those of the whole collection, with an
+ * {@link IndexSearcher} that searches the segments of all shards in
+ * parallel and merges the top hits.
+ */
+class Sharding {
+
+  /** Prefix of the shard subdirectories. */
+  static final String SHARD_PREFIX = "shard-";
+
+  /** Commit user data key of the shard of an index, e.g. "2/4 by host". */
+  static final String COMMIT_KEY = "shard";
+
+  /** Threads searching the shards, shared by all sharded searchers. */
+  private static ExecutorService fanOut;
+
+  final int numShards;
+  final boolean byHost;
+
+  /**
+   * @param numShards Number of shards
+   * @param byHost True to shard by host, false by url
+   */
+  Sharding(int numShards, boolean byHost) {
+    if (numShards < 1) {
+      throw new IllegalArgumentException("Number of shards must be at least 1");
+    }
+    this.numShards = numShards;
+    this.byHost = byHost;
+  }
+
+  /** Shard of a url. */
+  int shardOf(String url) {
+    String key = url;
+    if (byHost) {
+      try {
+        String host = new URI(url).getHost();
+        if (host != null) {
+          key = host.toLowerCase();
+        }
+      } catch (Exception e) {
+        // Malformed url, shard by the whole url
+      }
+    }
+    // Spread the bits of the string hash, which is the same in every JVM
+    int h = key.hashCode() * 0x9e3779b9;
+    h ^= h >>> 16;
+    return (h & 0x7fffffff) % numShards;
+  }
+
+  /** Description recorded in the commit of a shard. */
+  String describe(int shard) {
+    return shard + "/" + numShards + " by " + (byHost ? "host" : "url");
+  }
+
+  /** Directory of a shard of an index. */
+  static File shardDir(File indexDir, int shard) {
+    return new File(indexDir, SHARD_PREFIX + shard);
+  }
+
+  /** The shard directories of an index in shard order, empty if it is not sharded. */
+  static List<File> shardDirs(File indexDir) {
+    File[] dirs = indexDir.listFiles(new FileFilter() {
+      public boolean accept(File f) {
+        return f.isDirectory() && f.getName().matches(SHARD_PREFIX + "\\d+");
+      }
+    });
+    if (dirs == null) {
+      return new ArrayList<File>();
+    }
+    Arrays.sort(dirs, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return shardNumber(a) - shardNumber(b);
+      }
+    });
+    return Arrays.asList(dirs);
+  }
+
+  private static int shardNumber(File dir) {
+    return Integer.parseInt(dir.getName().substring(SHARD_PREFIX.length()));
+  }
+
+  /** Shared pool of the fan-out searchers, one thread per processor. */
+  static synchronized ExecutorService fanOutExecutor() {
+    if (fanOut == null) {
+      fanOut = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private int count;
+
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "shard-search-" + count++);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return fanOut;
+  }
+
+  /** The shard readers of a reader opened by {@link SearcherManager}, in shard order. */
+  static List<DirectoryReader> shardReaders(IndexReader reader) {
+    List<DirectoryReader> readers = new ArrayList<DirectoryReader>();
+    for (IndexReaderContext child : reader.getContext().children()) {
+      readers.add((DirectoryReader) child.reader());
+    }
+    return readers;
+  }
+
+  /**
+   * Reference-counted fan-out searcher over the shards of an index, like
+   * Lucene's {@code SearcherManager} for one directory: a refresh reopens
+   * the shards that changed and shares the readers of the others with the
+   * previous searcher.
+   */
+  static class SearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final SearcherFactory factory;
+
+    SearcherManager(Directory[] shards, SearcherFactory factory) throws IOException {
+      this.factory = factory;
+      DirectoryReader[] readers = new DirectoryReader[shards.length];
+      try {
+        for (int i = 0; i < shards.length; i++) {
+          readers[i] = DirectoryReader.open(shards[i]);
+        }
+      } catch (IOException e) {
+        for (DirectoryReader reader : readers) {
+          if (reader != null) reader.close();
+        }
+        throw e;
+      }
+      current = newSearcher(readers, readers);
+    }
+
+    /**
+     * Searcher over shard readers; the MultiReader takes its own reference
+     * to each, and the reference of the newly opened ones is dropped.
+     */
+    private IndexSearcher newSearcher(DirectoryReader[] readers, DirectoryReader[] opened) throws IOException {
+      MultiReader multi = new MultiReader(readers, false);
+      for (DirectoryReader reader : opened) {
+        if (reader != null) reader.decRef();
+      }
+      return factory.newSearcher(multi);
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+      List<DirectoryReader> old = shardReaders(referenceToRefresh.getIndexReader());
+      DirectoryReader[] readers = new DirectoryReader[old.size()];
+      DirectoryReader[] opened = new DirectoryReader[old.size()];
+      boolean changed = false;
+      try {
+        for (int i = 0; i < readers.length; i++) {
+          opened[i] = DirectoryReader.openIfChanged(old.get(i));
+          readers[i] = opened[i] == null ? old.get(i) : opened[i];
+          changed |= opened[i] != null;
+        }
+      } catch (IOException e) {
+        for (DirectoryReader reader : opened) {
+          if (reader != null) reader.close();
+        }
+        throw e;
+      }
+      return changed ? newSearcher(readers, opened) : null;
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) {
+      return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+      reference.getIndexReader().decRef();
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * One long-lived, reference-counted {@link IndexSearcher} per index directory.
+ * <p>
+ * The searcher is reopened in the background with
+ * {@code DirectoryReader.openIfChanged} (through Lucene's {@link SearcherManager}),
+ * so queries never pay the segment-open cost. Every {@link #acquire()} must be
+ * paired with a {@link #release(IndexSearcher)} in a finally block:
+ * <pre>
+ *   SharedSearcher shared = SharedSearcher.get("index");
+ *   IndexSearcher searcher = shared.acquire();
+ *   try {
+ *     ...
+ *   } finally {
+ *     shared.release(searcher);
+ *   }
+ * </pre>
+ * A sharded index (see {@link Sharding}) is searched as one reader over all
+ * its shards, with the segments searched in parallel. The query completion
+ * dictionary of the index, if it has one, is loaded along with the searcher
+ * and reloaded when a new one is saved.
+ */
+public class SharedSearcher {
+
+  /** Seconds between two background refresh checks. */
+  public static final long DEFAULT_REFRESH_SECONDS = 5;
+
+  private static final Map<String, SharedSearcher> instances = new HashMap<String, SharedSearcher>();
+
+  private final String indexPath;
+  private final Directory[] dirs;
+  private final IndexProfile profile;
+  private final ReferenceManager<IndexSearcher> manager;
+  private final ScheduledExecutorService refresher;
+  private volatile Suggester suggester;
+  private volatile long suggesterModified;
+
+  // Refresh metrics
+  private final AtomicLong refreshChecks = new AtomicLong();
+  private final AtomicLong reopens = new AtomicLong();
+  private final AtomicLong refreshFailures = new AtomicLong();
+  private final AtomicLong totalRefreshNanos = new AtomicLong();
+  private final AtomicLong maxRefreshNanos = new AtomicLong();
+
+  /**
+   * Get the shared searcher of an index, opening it on first use.
+   *
+   * @param indexPath Path of the index directory
+   * @throws IOException If the index cannot be opened
+   */
+  public static SharedSearcher get(String indexPath) throws IOException {
+    String key = new File(indexPath).getCanonicalPath();
+    synchronized (instances) {
+      SharedSearcher shared = instances.get(key);
+      if (shared == null) {
+        shared = new SharedSearcher(key, DEFAULT_REFRESH_SECONDS);
+        instances.put(key, shared);
+        if (ResultCache.WARM_LOG != null && key.equals(new File(SearchFiles.DEFAULT_INDEX).getCanonicalPath())) {
+          shared.warmResultCache();
+        }
+      }
+      return shared;
+    }
+  }
+
+  /** Close every shared searcher opened so far. */
+  public static void closeAll() {
+    synchronized (instances) {
+      for (SharedSearcher shared : instances.values()) {
+        try {
+          shared.close();
+        } catch (IOException e) {
+          System.err.println(e.getMessage());
+        }
+      }
+      instances.clear();
+    }
+  }
+
+  private SharedSearcher(String indexPath, long refreshSeconds) throws IOException {
+    this.indexPath = indexPath;
+    // A sharded index has its shards in subdirectories, built with the
+    // same profile
+    List<File> shards = Sharding.shardDirs(new File(indexPath));
+    if (shards.isEmpty()) {
+      shards = Collections.singletonList(new File(indexPath));
+    }
+    // Open the index the way its profile says, if it records one
+    Directory probe = FSDirectory.open(shards.get(0));
+    this.profile = IndexProfile.ofIndex(probe);
+    probe.close();
+    this.dirs = new Directory[shards.size()];
+    final boolean sharded = dirs.length > 1 || !shards.get(0).getPath().equals(indexPath);
+    SearcherFactory factory = new SearcherFactory() {
+      @Override
+      public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        reopens.incrementAndGet();
+        return sharded ? new IndexSearcher(reader, Sharding.fanOutExecutor()) : new IndexSearcher(reader);
+      }
+    };
+    ReferenceManager<IndexSearcher> manager = null;
+    try {
+      for (int i = 0; i < dirs.length; i++) {
+        dirs[i] = profile != null ? profile.openDirectory(shards.get(i)) : FSDirectory.open(shards.get(i));
+      }
+      manager = sharded ? new Sharding.SearcherManager(dirs, factory) : new SearcherManager(dirs[0], factory);
+    } finally {
+      if (manager == null) {
+        // Do not leak the directories of an index that cannot be opened
+        for (Directory dir : dirs) {
+          if (dir != null) dir.close();
+        }
+      }
+    }
+    this.manager = manager;
+    reloadSuggester();
+    this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "searcher-refresh");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.refresher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          refresh();
+        } catch (Exception e) {
+          // Keep the current searcher and try again next round
+          refreshFailures.incrementAndGet();
+          System.err.println("Refreshing " + SharedSearcher.this.indexPath + " failed: " + e.getMessage());
+        }
+      }
+    }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Fill the result cache of {@link SearchFiles} from the query log of
+   * {@code -Dsearch.cache.warmLog}. A log that cannot be read or replayed
+   * leaves the cache cold; it does not keep the index from opening.
+   */
+  private void warmResultCache() {
+    long start = System.nanoTime();
+    try {
+      IndexSearcher searcher = acquire();
+      try {
+        int n = SearchFiles.resultCache.warm(searcher, ResultCache.WARM_LOG, ResultCache.WARM_K);
+        System.err.println(String.format("Warmed the result cache with %d searches of %s in %.0f ms",
+            n, ResultCache.WARM_LOG, (System.nanoTime() - start) / 1e6));
+      } finally {
+        release(searcher);
+      }
+    } catch (Exception e) {
+      System.err.println("Warming the result cache from " + ResultCache.WARM_LOG + " failed: " + e);
+    }
+  }
+
+  /** Borrow the current searcher; give it back with {@link #release(IndexSearcher)}. */
+  public IndexSearcher acquire() throws IOException {
+    return manager.acquire();
+  }
+
+  /** Give back a searcher obtained from {@link #acquire()}. */
+  public void release(IndexSearcher searcher) throws IOException {
+    manager.release(searcher);
+  }
+
+  /**
+   * Reopen the searcher if the index changed since it was opened. This runs
+   * periodically in the background, but may also be called directly, e.g.
+   * right after an indexing run.
+   *
+   * @return true if a new searcher was opened
+   */
+  public boolean refresh() throws IOException {
+    long before = reopens.get();
+    long start = System.nanoTime();
+    manager.maybeRefreshBlocking();
+    reloadSuggester();
+    long elapsed = System.nanoTime() - start;
+
+    refreshChecks.incrementAndGet();
+    totalRefreshNanos.addAndGet(elapsed);
+    long max = maxRefreshNanos.get();
+    while (elapsed > max && !maxRefreshNanos.compareAndSet(max, elapsed)) {
+      max = maxRefreshNanos.get();
+    }
+    return reopens.get() != before;
+  }
+
+  /**
+   * Load the completion dictionary if it was saved since the last load. A
+   * dictionary that cannot be loaded is reported and left out until it is
+   * saved again; search does not depend on it.
+   */
+  private synchronized void reloadSuggester() {
+    File file = new File(indexPath, Suggester.FILE);
+    long modified = file.lastModified();
+    if (modified != suggesterModified) {
+      suggesterModified = modified;
+      try {
+        suggester = Suggester.load(new File(indexPath));
+      } catch (Exception e) {
+        suggester = null;
+        System.err.println("Loading " + file + " failed, completions are off: " + e);
+      }
+    }
+  }
+
+  /** Completion dictionary of the index, or null if it has none. */
+  Suggester getSuggester() {
+    return suggester;
+  }
+
+  public String getIndexPath() {
+    return indexPath;
+  }
+
+  /** Profile the index was built with, or null if it records none. */
+  public IndexProfile getProfile() {
+    return profile;
+  }
+
+  /** Number of refresh checks done so far. */
+  public long getRefreshChecks() {
+    return refreshChecks.get();
+  }
+
+  /** Number of times a new searcher was opened, including the initial open. */
+  public long getReopens() {
+    return reopens.get();
+  }
+
+  public long getRefreshFailures() {
+    return refreshFailures.get();
+  }
+
+  /** Average time of a refresh check in milliseconds. */
+  public double getAvgRefreshMillis() {
+    long checks = refreshChecks.get();
+    return checks == 0 ? 0.0 : totalRefreshNanos.get() / 1e6 / checks;
+  }
+
+  /** Longest refresh check in milliseconds. */
+  public double getMaxRefreshMillis() {
+    return maxRefreshNanos.get() / 1e6;
+  }
+
+  /** One-line summary of the refresh metrics. */
+  public String getStats() {
+    return String.format("%s [%s, %s]: %d refresh checks, %d reopens, %d failures, avg %.3f ms, max %.3f ms",
+        indexPath, profile == null ? "no profile" : profile.getName(),
+        (dirs.length > 1 ? dirs.length + " shards, " : "") + dirs[0].getClass().getSimpleName(),
+        getRefreshChecks(), getReopens(), getRefreshFailures(),
+        getAvgRefreshMillis(), getMaxRefreshMillis());
+  }
+
+  /**
+   * Stop refreshing and close the searcher and the index directories.
+   * Searchers still borrowed stay usable: their files are only closed when
+   * they are released.
+   */
+  public void close() throws IOException {
+    refresher.shutdownNow();
+    manager.close();
+    for (Directory dir : dirs) {
+      dir.close();
+    }
+  }
+}
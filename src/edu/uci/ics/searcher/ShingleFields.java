@@ -0,0 +1,85 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.shingle.ShingleAnalyzerWrapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+
+/**
+ * Optional word bigram fields {@code contents_shingles} and
+ * {@code title_shingles}, so a two-word phrase is a single term lookup
+ * instead of a positional phrase query.
+ * <p>
+ * A shingle is two adjacent tokens of the standard analyzer joined by a
+ * space; a stop word between them breaks the adjacency, like it does for a
+ * phrase. The fields keep term frequencies but no positions, so the phrase
+ * frequency of a document is the frequency of its shingle. The commit of an
+ * index with shingle fields records it, and {@link QueryBuilder} only
+ * rewrites phrases for such indexes.
+ */
+class ShingleFields {
+
+  /** Commit user data key, present if every document has shingle fields. */
+  static final String COMMIT_KEY = "shingles";
+
+  /** Words per shingle. */
+  static final int SIZE = 2;
+
+  private static final String SUFFIX = "_shingles";
+  private static final String[] SOURCE_FIELDS = { "contents", "title" };
+
+  /** Indexed with frequencies, not positions; not stored. */
+  private static final FieldType TYPE = new FieldType();
+  static {
+    TYPE.setIndexed(true);
+    TYPE.setTokenized(true);
+    TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    TYPE.freeze();
+  }
+
+  private ShingleFields() {}
+
+  /** Shingle field of a field. */
+  static String field(String field) {
+    return field + SUFFIX;
+  }
+
+  /** Shingle of two adjacent tokens. */
+  static String shingle(String first, String second) {
+    return first + " " + second;
+  }
+
+  /** Analyzer of an index writer: the base analyzer, and its shingles for the shingle fields. */
+  static Analyzer indexAnalyzer(Analyzer base) {
+    Analyzer shingles = new ShingleAnalyzerWrapper(base, SIZE, SIZE, " ", false, false);
+    Map<String, Analyzer> fields = new HashMap<String, Analyzer>();
+    for (String field : SOURCE_FIELDS) {
+      fields.put(field(field), shingles);
+    }
+    return new PerFieldAnalyzerWrapper(base, fields);
+  }
+
+  /** Add the shingle fields of the contents and title of a document. */
+  static void addFields(Document doc) {
+    for (String field : SOURCE_FIELDS) {
+      IndexableField source = doc.getField(field);
+      if (source != null && source.stringValue() != null) {
+        doc.add(new Field(field(field), source.stringValue(), TYPE));
+      }
+    }
+  }
+
+  /** True if every document of a reader has shingle fields. */
+  static boolean isIndexed(IndexReader reader) throws IOException {
+    return String.valueOf(SIZE).equals(CommitData.get(reader, COMMIT_KEY));
+  }
+}
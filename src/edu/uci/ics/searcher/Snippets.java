@@ -0,0 +1,204 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import org.apache.lucene.document.CompressionTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.highlight.DefaultEncoder;
+import org.apache.lucene.search.highlight.Encoder;
+import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.search.vectorhighlight.FragListBuilder;
+import org.apache.lucene.search.vectorhighlight.FragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.ScoreOrderFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.SimpleFragListBuilder;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Passages of the contents of hits with the query terms marked, made
+ * without reading or re-analyzing the text files.
+ * <p>
+ * With {@code IndexFiles -snippets}, the contents field gets term vectors
+ * with positions and offsets, and a deflated copy of the text is stored as
+ * {@value #STORED_FIELD}. The {@link FastVectorHighlighter} finds the
+ * query terms and phrases in the term vector of a hit, and the best scoring
+ * passages are cut from the stored copy. The commit of an index with
+ * snippet fields records it.
+ * <p>
+ * Every hit of a page gets {@code -Dsearch.snippets.budgetMicros} of
+ * highlighting time, and what fast hits leave is there for slower ones.
+ * Once a page is over its budget, its remaining hits get no snippet; the
+ * first one always gets one.
+ */
+class Snippets {
+
+  /** Commit user data key, present if every document has snippet fields. */
+  static final String COMMIT_KEY = "snippets";
+
+  /** Stored, deflated UTF-8 copy of the contents. */
+  static final String STORED_FIELD = "contents_stored";
+
+  /** Highlighting time of a hit, unused time carrying over to the next ones. */
+  static final long BUDGET_MICROS = Long.getLong("search.snippets.budgetMicros", 2000);
+
+  /** Characters per passage. */
+  static final int FRAGMENT_SIZE = Integer.getInteger("search.snippets.fragmentSize", 100);
+
+  /** Passages per snippet. */
+  static final int MAX_FRAGMENTS = Integer.getInteger("search.snippets.fragments", 2);
+
+  /** Query term matches looked at per hit, bounding the work on very long pages. */
+  static final int PHRASE_LIMIT = Integer.getInteger("search.snippets.phraseLimit", 256);
+
+  private static final String FIELD = "contents";
+  private static final String SEPARATOR = " ... ";
+  private static final Set<String> STORED_FIELDS = Collections.singleton(STORED_FIELD);
+
+  /** Contents with term vectors for the highlighter; not stored. */
+  private static final FieldType TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+  static {
+    TYPE.setStoreTermVectors(true);
+    TYPE.setStoreTermVectorPositions(true);
+    TYPE.setStoreTermVectorOffsets(true);
+    TYPE.freeze();
+  }
+
+  /** Query terms in bold, the text escaped for html. */
+  static final Snippets HTML = new Snippets("<b>", "</b>", new SimpleHTMLEncoder());
+
+  /** Query terms in brackets, for the console. */
+  static final Snippets TEXT = new Snippets("[", "]", new DefaultEncoder());
+
+  static final AtomicLong hitsHighlighted = new AtomicLong();
+  static final AtomicLong hitsOverBudget = new AtomicLong();
+  static final AtomicLong highlightNanos = new AtomicLong();
+
+  private final String[] preTags;
+  private final String[] postTags;
+  private final Encoder encoder;
+  private final FastVectorHighlighter highlighter;
+  private final FragListBuilder fragListBuilder = new SimpleFragListBuilder();
+  private final FragmentsBuilder fragmentsBuilder;
+
+  private Snippets(String preTag, String postTag, Encoder encoder) {
+    this.preTags = new String[] { preTag };
+    this.postTags = new String[] { postTag };
+    this.encoder = encoder;
+    this.fragmentsBuilder = new ScoreOrderFragmentsBuilder(preTags, postTags) {
+      @Override
+      protected Field[] getFields(IndexReader reader, int docId, String fieldName) throws IOException {
+        // The text is stored compressed, under another name
+        String text = storedText(reader, docId);
+        return text == null ? new Field[0] : new Field[] { new Field(fieldName, text, TextField.TYPE_STORED) };
+      }
+    };
+    this.highlighter = new FastVectorHighlighter(true, true, fragListBuilder, fragmentsBuilder);
+    this.highlighter.setPhraseLimit(PHRASE_LIMIT);
+  }
+
+  /** Give the contents of a document term vectors and add its compressed copy. */
+  static void addFields(Document doc) {
+    IndexableField source = doc.getField(FIELD);
+    if (source == null || source.stringValue() == null) {
+      return;
+    }
+    String text = source.stringValue();
+    doc.removeField(FIELD);
+    doc.add(new Field(FIELD, text, TYPE));
+    doc.add(new StoredField(STORED_FIELD, CompressionTools.compressString(text)));
+  }
+
+  /** True if every document of a reader has snippet fields. */
+  static boolean isIndexed(IndexReader reader) throws IOException {
+    return "1".equals(CommitData.get(reader, COMMIT_KEY));
+  }
+
+  /**
+   * Snippets of a range of hits.
+   *
+   * @param searcher Searcher the hits come from
+   * @param textQuery The text query, whose contents terms and phrases are marked
+   * @param hits The hits, best first
+   * @param from First hit
+   * @param to End of the range of hits, exclusive
+   * @return The snippets in the order of the hits, null for hits without
+   *         one, or null if the index has no snippet fields
+   */
+  String[] forHits(IndexSearcher searcher, Query textQuery, ScoreDoc[] hits, int from, int to) throws IOException {
+    IndexReader reader = searcher.getIndexReader();
+    if (!isIndexed(reader)) {
+      return null;
+    }
+    long start = System.nanoTime();
+    long deadline = start + (to - from) * BUDGET_MICROS * 1000;
+    FieldQuery fieldQuery = highlighter.getFieldQuery(textQuery);
+    String[] snippets = new String[to - from];
+    for (int i = from; i < to; i++) {
+      // The best hit always gets a snippet
+      if (i > from && System.nanoTime() > deadline) {
+        hitsOverBudget.addAndGet(to - i);
+        break;
+      }
+      snippets[i - from] = forHit(fieldQuery, reader, hits[i].doc);
+      hitsHighlighted.incrementAndGet();
+    }
+    highlightNanos.addAndGet(System.nanoTime() - start);
+    return snippets;
+  }
+
+  /** Best passages of a hit, or its beginning if the contents do not match. */
+  private String forHit(FieldQuery fieldQuery, IndexReader reader, int doc) throws IOException {
+    String[] fragments = highlighter.getBestFragments(fieldQuery, reader, doc, FIELD, FRAGMENT_SIZE, MAX_FRAGMENTS,
+        fragListBuilder, fragmentsBuilder, preTags, postTags, encoder);
+    if (fragments != null && fragments.length > 0) {
+      StringBuilder sb = new StringBuilder();
+      for (String fragment : fragments) {
+        if (sb.length() > 0) sb.append(SEPARATOR);
+        sb.append(fragment.trim());
+      }
+      return sb.toString();
+    }
+    String text = storedText(reader, doc);
+    if (text == null) {
+      return null;
+    }
+    if (text.length() > FRAGMENT_SIZE) {
+      int cut = text.lastIndexOf(' ', FRAGMENT_SIZE);
+      text = text.substring(0, cut > 0 ? cut : FRAGMENT_SIZE);
+    }
+    return encoder.encodeText(text.trim());
+  }
+
+  /** Stored copy of the contents of a document, null if it has none. */
+  private static String storedText(IndexReader reader, int doc) throws IOException {
+    BytesRef bytes = reader.document(doc, STORED_FIELDS).getBinaryValue(STORED_FIELD);
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      return CompressionTools.decompressString(bytes);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt " + STORED_FIELD + " of document " + doc, e);
+    }
+  }
+
+  static String getStats() {
+    long hits = hitsHighlighted.get();
+    return String.format("%d hits highlighted, avg %.3f ms, %d over budget",
+        hits, hits == 0 ? 0.0 : highlightNanos.get() / 1e6 / hits, hitsOverBudget.get());
+  }
+}
@@ -0,0 +1,246 @@
+package edu.uci.ics.searcher;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.Query;
+
+/**
+ * Query-independent prior of a page, computed once at index time and stored
+ * as the float doc values field {@code prior}.
+ * <p>
+ * The prior is the factor {@link SearchFiles.MyOwnScoreQuery} applies (url
+ * boost rules and short document penalty), times optional url depth, inlink
+ * count and PageRank authority factors whose weights default to 0, i.e. no
+ * effect. The links come from a {@link LinkGraph}; with one, the authority
+ * is also stored on its own as the doc values field {@code authority}.
+ * <p>
+ * The fingerprint of the rules and weights is recorded in the commit user
+ * data; when it matches the rules in use, {@link #rankingQuery} multiplies
+ * the text score by the stored prior through a function query, otherwise it
+ * falls back to computing the factors at search time.
+ */
+class StaticPrior {
+
+  /** Doc values field of the prior. */
+  static final String FIELD = "prior";
+
+  /** Doc values field of the PageRank authority, 1 for an average page. */
+  static final String AUTHORITY_FIELD = "authority";
+
+  /** Commit user data key of the fingerprint of the priors. */
+  static final String COMMIT_KEY = "prior";
+
+  /** Bump when the way the prior is computed changes, so old indexes are not trusted. */
+  private static final int FORMAT = 2;
+
+  /** Exponent of the url depth penalty, 0 to ignore the depth. */
+  static final float DEPTH_WEIGHT = Float.parseFloat(System.getProperty("search.prior.depthWeight", "0"));
+
+  /** Exponent of the link count boost, 0 to ignore links. */
+  static final float LINK_WEIGHT = Float.parseFloat(System.getProperty("search.prior.linkWeight", "0"));
+
+  /** Exponent of the PageRank authority boost, 0 to ignore it. */
+  static final float AUTHORITY_WEIGHT = Float.parseFloat(System.getProperty("search.prior.authorityWeight", "0"));
+
+  private static volatile StaticPrior current;
+
+  /** True once it was reported that the link weights cannot apply at search time. */
+  private static volatile boolean linkWeightsWarned;
+
+  private final UrlBoostRules rules;
+  private final LinkGraph links;
+  private final String fingerprint;
+
+  private StaticPrior(UrlBoostRules rules, LinkGraph links) {
+    this.rules = rules;
+    this.links = links;
+    String fingerprint = rules.fingerprint() + ";format=" + FORMAT + ";depth=" + DEPTH_WEIGHT + ";link=" + LINK_WEIGHT
+        + ";authority=" + AUTHORITY_WEIGHT;
+    if (links != null && (LINK_WEIGHT != 0 || AUTHORITY_WEIGHT != 0)) {
+      fingerprint += ";links=" + links.fingerprint();
+    }
+    this.fingerprint = fingerprint;
+  }
+
+  /** The prior of the url boost rules in use. */
+  static StaticPrior current() {
+    UrlBoostRules rules = UrlBoostRules.current();
+    StaticPrior prior = current;
+    if (prior == null || prior.rules != rules) {
+      prior = new StaticPrior(rules, null);
+      current = prior;
+    }
+    return prior;
+  }
+
+  /** This prior with the links and ranks of a link graph. */
+  StaticPrior withLinks(LinkGraph links) {
+    return new StaticPrior(rules, links);
+  }
+
+  /** True if the links of a graph are used. */
+  boolean hasLinks() {
+    return links != null;
+  }
+
+  /** Identifies the rules and weights the priors are computed with. */
+  String fingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * Prior of a page, with its links if the url is in the link graph.
+   *
+   * @param url The url of the page
+   * @param length Length of the content
+   */
+  float compute(String url, long length) {
+    int id = links == null ? -1 : links.id(url);
+    return id < 0 ? compute(url, length, 0, 1.0f) : compute(url, length, links.inlinks(id), links.authority(id));
+  }
+
+  /** PageRank authority of a page, 1 if it is not in the link graph. */
+  float authority(String url) {
+    int id = links == null ? -1 : links.id(url);
+    return id < 0 ? 1.0f : links.authority(id);
+  }
+
+  /**
+   * Prior of a page.
+   *
+   * @param url The url of the page
+   * @param length Length of the content
+   * @param inlinks Number of links to the page
+   * @param authority PageRank of the page, 1 for an average page
+   */
+  float compute(String url, long length, int inlinks, float authority) {
+    float prior = SearchFiles.MyOwnScoreQuery.staticBoost(rules, url, length);
+    if (DEPTH_WEIGHT != 0) {
+      prior /= (float) Math.pow(depth(url), DEPTH_WEIGHT);
+    }
+    if (LINK_WEIGHT != 0) {
+      prior *= (float) Math.pow(1 + Math.log1p(inlinks), LINK_WEIGHT);
+    }
+    if (AUTHORITY_WEIGHT != 0) {
+      prior *= (float) Math.pow(authority, AUTHORITY_WEIGHT);
+    }
+    return prior;
+  }
+
+  /** Number of path segments of a url, at least 1. */
+  static int depth(String url) {
+    int start = url.indexOf("://");
+    start = url.indexOf('/', start < 0 ? 0 : start + 3);
+    int depth = 0;
+    for (int i = start; i >= 0 && i < url.length(); i = url.indexOf('/', i + 1)) {
+      depth++;
+    }
+    return Math.max(1, depth);
+  }
+
+  /**
+   * The ranking query of a text query: the text score times the prior,
+   * read from doc values if the index has current priors. Otherwise the
+   * prior is computed at search time (see {@link SegmentBoosts}), with the
+   * depth penalty but without the link graph, so without the link and
+   * authority weights.
+   */
+  static CustomScoreQuery rankingQuery(IndexReader reader, Query query) throws IOException {
+    if (isCurrent(reader)) {
+      CustomScoreQuery ranking = new CustomScoreQuery(query, new FunctionQuery(new PriorValueSource()));
+      // The prior multiplies the score as is, without query normalization
+      ranking.setStrict(true);
+      return ranking;
+    }
+    if ((LINK_WEIGHT != 0 || AUTHORITY_WEIGHT != 0) && !linkWeightsWarned) {
+      linkWeightsWarned = true;
+      System.err.println("The index has no current stored priors: ranking with the url boosts and depth penalty,"
+          + " the link and authority weights are off until it is rebuilt");
+    }
+    return new SearchFiles.MyOwnScoreQuery(query);
+  }
+
+  /**
+   * True if priors with a fingerprint are computed with the rules and
+   * weights in use. Which link graph they were computed with cannot be
+   * checked at search time and is not compared.
+   */
+  static boolean isCurrent(String fingerprint) {
+    String base = current().fingerprint;
+    return fingerprint != null && (fingerprint.equals(base) || fingerprint.startsWith(base + ";links="));
+  }
+
+  /**
+   * Fingerprint recorded in the commit of a reader, null if none. A reader
+   * over several indexes (shards) has one if all of them have the same.
+   */
+  static String fingerprintOf(IndexReader reader) throws IOException {
+    return CommitData.get(reader, COMMIT_KEY);
+  }
+
+  /**
+   * Priors of the documents of a segment, from doc values, or computed like
+   * at search time if the segment has none.
+   */
+  static float[] priors(AtomicReader reader) throws IOException {
+    DocValues docValues = reader.docValues(FIELD);
+    if (docValues == null) {
+      return SegmentBoosts.forSegment(reader);
+    }
+    DocValues.Source source = docValues.getSource();
+    if (source.hasArray() && source.getArray() instanceof float[]) {
+      return (float[]) source.getArray();
+    }
+    float[] priors = new float[reader.maxDoc()];
+    for (int doc = 0; doc < priors.length; doc++) {
+      priors[doc] = (float) source.getFloat(doc);
+    }
+    return priors;
+  }
+
+  /** True if the priors of a reader are the stored ones, computed with the rules in use. */
+  static boolean isCurrent(IndexReader reader) throws IOException {
+    return isCurrent(fingerprintOf(reader));
+  }
+
+  /** Per-segment priors from doc values, or computed like at search time for segments without them. */
+  static class PriorValueSource extends ValueSource {
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+      final float[] priors = priors(readerContext.reader());
+      return new FloatDocValues(this) {
+        @Override
+        public float floatVal(int doc) {
+          return priors[doc];
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof PriorValueSource;
+    }
+
+    @Override
+    public int hashCode() {
+      return PriorValueSource.class.getName().hashCode();
+    }
+
+    @Override
+    public String description() {
+      return "prior";
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Query completions from a weighted dictionary of page titles and frequent
+ * content phrases, built by {@link IndexFiles} with {@code -suggest} and
+ * saved beside the index as {@value #FILE}.
+ * <p>
+ * The weight of an entry is the sum of the static priors of the pages it
+ * comes from, so completions lead to pages the url boosts (and PageRank, if
+ * the index has it) favor. Entries are the titles of the pages and the
+ * words, and with shingle fields (see {@link ShingleFields}) the word
+ * bigrams, of at least {@code -Dindex.suggest.minDocFreq} pages' contents.
+ * The dictionary is a weighted FST ({@link WFSTCompletionLookup}) held in
+ * memory: a lookup walks the prefix and then the best completions, without
+ * touching the index. Completions are by prefix only; misspellings are not
+ * corrected.
+ */
+class Suggester {
+
+  /** File of the dictionary, in the index directory (the top one for a sharded index). */
+  static final String FILE = "suggest.fst";
+
+  /** Pages a content phrase must appear in. */
+  static final int MIN_DOC_FREQ = Integer.getInteger("index.suggest.minDocFreq", 5);
+
+  /** Titles are cut at the last word boundary within this length. */
+  private static final int MAX_TITLE_LENGTH = 80;
+
+  /** Weights are kept as integers, in hundredths of a prior. */
+  private static final double WEIGHT_SCALE = 100;
+
+  private final WFSTCompletionLookup lookup;
+
+  private Suggester(WFSTCompletionLookup lookup) {
+    this.lookup = lookup;
+  }
+
+  /**
+   * Completions of a prefix, best first.
+   *
+   * @param prefix What the user typed so far
+   * @param num Maximum number of completions
+   */
+  List<LookupResult> lookup(String prefix, int num) {
+    String key = normalize(prefix);
+    if (key.length() == 0) {
+      return Collections.emptyList();
+    }
+    return lookup.lookup(key, false, num);
+  }
+
+  /** Weight of a completion as a sum of priors. */
+  static double weightOf(LookupResult result) {
+    return result.value / WEIGHT_SCALE;
+  }
+
+  /**
+   * Lower case, without control characters, runs of whitespace as one
+   * space and no leading space. A trailing space is kept, so a prefix
+   * ending with a whole word only completes the next one.
+   */
+  static String normalize(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+          sb.append(' ');
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString().toLowerCase(Locale.ROOT);
+  }
+
+  /** Build the dictionary of an index, sharded or not. */
+  static Suggester build(File indexDir) throws IOException {
+    List<File> shards = Sharding.shardDirs(indexDir);
+    if (shards.isEmpty()) {
+      shards = Collections.singletonList(indexDir);
+    }
+    IndexReader[] readers = new IndexReader[shards.size()];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = DirectoryReader.open(FSDirectory.open(shards.get(i)));
+    }
+    IndexReader reader = readers.length == 1 ? readers[0] : new MultiReader(readers);
+    try {
+      return build(entries(reader));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Entries of the dictionary of an index: titles and frequent content
+   * phrases with the sum of the priors of their pages.
+   */
+  static Map<String, Double> entries(IndexReader reader) throws IOException {
+    Map<String, Double> weights = new HashMap<String, Double>();
+    boolean shingles = ShingleFields.isIndexed(reader);
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader segment = leaf.reader();
+      float[] priors = StaticPrior.priors(segment);
+      Bits liveDocs = segment.getLiveDocs();
+      for (int doc = 0; doc < segment.maxDoc(); doc++) {
+        if (liveDocs != null && !liveDocs.get(doc)) continue;
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("title");
+        segment.document(doc, visitor);
+        String title = visitor.getDocument().get("title");
+        if (title != null) {
+          add(weights, title(title), weight(priors[doc]));
+        }
+      }
+      addPhrases(weights, reader, segment, "contents", priors);
+      if (shingles) {
+        addPhrases(weights, reader, segment, ShingleFields.field("contents"), priors);
+      }
+    }
+    return weights;
+  }
+
+  /** Normalized title, cut to the maximum length. */
+  private static String title(String title) {
+    String s = normalize(title).trim();
+    if (s.length() > MAX_TITLE_LENGTH) {
+      int cut = s.lastIndexOf(' ', MAX_TITLE_LENGTH);
+      s = s.substring(0, cut > 0 ? cut : MAX_TITLE_LENGTH);
+    }
+    return s;
+  }
+
+  /**
+   * Add the terms of a field of a segment that are in enough pages of the
+   * whole index, so the entries do not depend on how the segments were
+   * merged. Single letters are left out, and so are shingles across a
+   * removed stop word.
+   */
+  private static void addPhrases(Map<String, Double> weights, IndexReader reader, AtomicReader segment, String field,
+      float[] priors) throws IOException {
+    Terms terms = segment.terms(field);
+    if (terms == null) {
+      return;
+    }
+    TermsEnum termsEnum = terms.iterator(null);
+    DocsEnum docs = null;
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      if (term.length < 2) continue;
+      String phrase = term.utf8ToString();
+      if (phrase.indexOf('_') >= 0 || reader.docFreq(new Term(field, term)) < MIN_DOC_FREQ) continue;
+      docs = termsEnum.docs(segment.getLiveDocs(), docs, 0);
+      double weight = 0;
+      for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+        weight += weight(priors[doc]);
+      }
+      add(weights, phrase, weight);
+    }
+  }
+
+  /** Weight a page adds to its entries: its prior, or nothing for a prior that is not finite and positive. */
+  private static double weight(float prior) {
+    return prior > 0 && !Float.isInfinite(prior) ? prior : 0;
+  }
+
+  private static void add(Map<String, Double> weights, String entry, double weight) {
+    if (entry.length() == 0) {
+      return;
+    }
+    Double old = weights.get(entry);
+    weights.put(entry, old == null ? weight : old + weight);
+  }
+
+  /** Build a dictionary of entries and their weights. */
+  static Suggester build(Map<String, Double> weights) throws IOException {
+    final List<Map.Entry<String, Double>> entries = new ArrayList<Map.Entry<String, Double>>(weights.entrySet());
+    WFSTCompletionLookup lookup = new WFSTCompletionLookup(true);
+    lookup.build(new TermFreqIterator() {
+      private int i = -1;
+      private final BytesRef spare = new BytesRef();
+
+      public BytesRef next() {
+        if (++i >= entries.size()) {
+          return null;
+        }
+        spare.copyChars(entries.get(i).getKey());
+        return spare;
+      }
+
+      public long weight() {
+        // The lookup only takes weights from 0 to Integer.MAX_VALUE
+        double weight = entries.get(i).getValue() * WEIGHT_SCALE;
+        return weight > 0 ? Math.min(Integer.MAX_VALUE, Math.round(weight)) : 0;
+      }
+
+      public Comparator<BytesRef> getComparator() {
+        // Not sorted, the lookup sorts them
+        return null;
+      }
+    });
+    return new Suggester(lookup);
+  }
+
+  /** Save the dictionary in an index directory, replacing the old one only once it is complete. */
+  void store(File indexDir) throws IOException {
+    File tmp = new File(indexDir, FILE + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+    try {
+      lookup.store(out);
+    } finally {
+      out.close();
+    }
+    File file = new File(indexDir, FILE);
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("Cannot replace " + file);
+    }
+  }
+
+  /** Load the dictionary of an index directory, or null if it has none. */
+  static Suggester load(File indexDir) throws IOException {
+    File file = new File(indexDir, FILE);
+    if (!file.exists()) {
+      return null;
+    }
+    WFSTCompletionLookup lookup = new WFSTCompletionLookup(true);
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      lookup.load(in);
+    } finally {
+      in.close();
+    }
+    return new Suggester(lookup);
+  }
+
+  /** Build the dictionary of an existing index, or look up prefixes in it. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.Suggester [-index INDEX_PATH] [-build] [-k K] [PREFIX...]\n\n"
+        + "With -build, this builds the completion dictionary of the index and saves it in\n"
+        + "INDEX_PATH/" + FILE + ". It then prints the top K completions of every PREFIX and\n"
+        + "the time of the lookup.";
+    String index = SearchFiles.DEFAULT_INDEX;
+    boolean build = false;
+    int k = 10;
+    List<String> prefixes = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals(args[i])) {
+        index = args[++i];
+      } else if ("-build".equals(args[i])) {
+        build = true;
+      } else if ("-k".equals(args[i])) {
+        k = Integer.parseInt(args[++i]);
+      } else if (args[i].startsWith("-")) {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      } else {
+        prefixes.add(args[i]);
+      }
+    }
+
+    File indexDir = new File(index);
+    Suggester suggester;
+    if (build) {
+      long start = System.nanoTime();
+      suggester = build(indexDir);
+      suggester.store(indexDir);
+      System.out.println(String.format("Built %s in %.0f ms, %d bytes", new File(indexDir, FILE),
+          (System.nanoTime() - start) / 1e6, new File(indexDir, FILE).length()));
+    } else {
+      suggester = load(indexDir);
+      if (suggester == null) {
+        System.err.println(index + " has no " + FILE + ", build it with -build");
+        System.exit(1);
+      }
+    }
+    for (String prefix : prefixes) {
+      long start = System.nanoTime();
+      List<LookupResult> completions = suggester.lookup(prefix, k);
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format("'%s' (%.3f ms):", prefix, elapsed / 1e6));
+      for (LookupResult completion : completions) {
+        System.out.println(String.format("  %-60s %.2f", completion.key, weightOf(completion)));
+      }
+    }
+  }
+}
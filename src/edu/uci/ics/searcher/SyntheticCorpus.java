@@ -0,0 +1,205 @@
+package edu.uci.ics.searcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Reproducible pages and queries shaped like the ICS crawl, for benchmarks:
+ * Zipf distributed words, urls on the hosts and paths the boost rules know
+ * about, and some pages short enough for the length penalty.
+ */
+class SyntheticCorpus {
+
+  /** Words of the real queries, so these match in the synthetic pages. */
+  private static final String[] COMMON_WORDS = {
+    "mondego", "machine", "learning", "software", "engineering", "security", "student", "affairs",
+    "graduate", "courses", "crista", "lopes", "rest", "computer", "games", "information", "retrieval",
+    "irvine", "uci", "ics", "research", "faculty", "project", "data", "systems"
+  };
+
+  private static final String[] URL_PREFIXES = {
+    "http://www.ics.uci.edu/", "http://www.ics.uci.edu/~lopes/", "http://www.ics.uci.edu/~fielding/",
+    "http://archive.ics.uci.edu/ml/", "http://www.ics.uci.edu/grad/courses/", "http://www.ics.uci.edu/faculty/",
+    "http://mlearn.ics.uci.edu/", "http://www.ics.uci.edu/prospective/en/", "http://www.ics.uci.edu/~user/"
+  };
+
+  final int numDocs;
+  private final String[] vocabulary;
+  private final double[] cumulative;
+
+  final String[] urls;
+  final String[] titles;
+  final byte[][] texts;
+  final byte[][] htmls;
+
+  /**
+   * @param numDocs Number of pages
+   * @param vocabularySize Number of distinct words
+   * @param seed Random seed
+   */
+  SyntheticCorpus(int numDocs, int vocabularySize, long seed) {
+    this.numDocs = numDocs;
+    Random random = new Random(seed);
+
+    vocabulary = new String[Math.max(vocabularySize, COMMON_WORDS.length)];
+    for (int i = 0; i < vocabulary.length; i++) {
+      vocabulary[i] = i < COMMON_WORDS.length ? COMMON_WORDS[i] : "w" + Integer.toString(i, 36);
+    }
+    // Zipf: the word of rank r has weight 1/r
+    cumulative = new double[vocabulary.length];
+    double sum = 0;
+    for (int i = 0; i < vocabulary.length; i++) {
+      sum += 1.0 / (i + 1);
+      cumulative[i] = sum;
+    }
+
+    urls = new String[numDocs];
+    titles = new String[numDocs];
+    texts = new byte[numDocs][];
+    htmls = new byte[numDocs][];
+    for (int i = 0; i < numDocs; i++) {
+      urls[i] = URL_PREFIXES[random.nextInt(URL_PREFIXES.length)] + "page" + i + ".html";
+      titles[i] = words(random, 2 + random.nextInt(5));
+      // One page in ten is short enough for the length penalty
+      int length = random.nextInt(10) == 0 ? 20 + random.nextInt(200) : 100 + random.nextInt(1500);
+      String text = words(random, length);
+      texts[i] = utf8(text);
+      htmls[i] = utf8("<html><head><title>" + titles[i] + "</title>"
+          + "<meta name=\"robots\" content=\"index, follow\"></head><body><p>" + text + "</p></body></html>");
+    }
+  }
+
+  private String words(Random random, int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append(' ');
+      sb.append(word(random));
+    }
+    return sb.toString();
+  }
+
+  private String word(Random random) {
+    double x = random.nextDouble() * cumulative[cumulative.length - 1];
+    int i = Arrays.binarySearch(cumulative, x);
+    return vocabulary[i < 0 ? -i - 1 : i];
+  }
+
+  /** Search strings of one to three words, mostly frequent ones. */
+  String[] queries(int n, long seed) {
+    Random random = new Random(seed);
+    String[] queries = new String[n];
+    for (int i = 0; i < n; i++) {
+      queries[i] = words(random, 1 + random.nextInt(3));
+    }
+    return queries;
+  }
+
+  /** Completion dictionary entries of one to four words, with log-normal weights. */
+  Map<String, Double> completions(int n, long seed) {
+    Random random = new Random(seed);
+    Map<String, Double> completions = new HashMap<String, Double>(n * 2);
+    while (completions.size() < n) {
+      completions.put(words(random, 1 + random.nextInt(4)), Math.exp(2 * random.nextGaussian()));
+    }
+    return completions;
+  }
+
+  /** What users type before picking a completion: the start of a search string. */
+  String[] prefixes(int n, long seed) {
+    Random random = new Random(seed);
+    String[] prefixes = new String[n];
+    for (int i = 0; i < n; i++) {
+      String q = words(random, 1 + random.nextInt(3));
+      prefixes[i] = q.substring(0, 1 + random.nextInt(q.length()));
+    }
+    return prefixes;
+  }
+
+  /** Head of a page, as the indexer reads it. */
+  HtmlHead head(int doc) throws IOException {
+    return HtmlHead.read(new ByteArrayInputStream(htmls[doc]), HtmlHead.DEFAULT_BYTE_LIMIT);
+  }
+
+  /** Index all pages into a directory the way {@link IndexFiles} does. */
+  void index(Directory dir) throws IOException {
+    index(dir, IndexProfile.BULK_BUILD);
+  }
+
+  /** Index all pages with a profile, in order of decreasing prior if it is sorted. */
+  void index(Directory dir, IndexProfile profile) throws IOException {
+    index(dir, profile, false);
+  }
+
+  /** Index all pages with a profile, and with {@link ShingleFields} if asked. */
+  void index(Directory dir, IndexProfile profile, boolean shingles) throws IOException {
+    index(dir, profile, shingles, false);
+  }
+
+  /** Index all pages with a profile, with {@link ShingleFields} and {@link Snippets} fields if asked. */
+  void index(Directory dir, IndexProfile profile, boolean shingles, boolean snippets) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40,
+        shingles ? ShingleFields.indexAnalyzer(QueryBuilder.analyzer) : QueryBuilder.analyzer);
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    profile.configure(iwc);
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    StaticPrior prior = StaticPrior.current();
+    try {
+      final float[] priors = new float[numDocs];
+      Integer[] order = new Integer[numDocs];
+      for (int i = 0; i < numDocs; i++) {
+        priors[i] = prior.compute(urls[i], texts[i].length);
+        order[i] = i;
+      }
+      if (profile.isSortedByPrior()) {
+        Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return Float.compare(priors[b], priors[a]);
+          }
+        });
+      }
+      for (int i : order) {
+        HtmlHead head = head(i);
+        Document doc = IndexFiles.buildDoc(urls[i], head, texts[i], 0, IndexManifest.hash(texts[i], head.getTitle()),
+            priors[i]);
+        if (shingles) {
+          ShingleFields.addFields(doc);
+        }
+        if (snippets) {
+          Snippets.addFields(doc);
+        }
+        writer.addDocument(doc);
+      }
+      Map<String, String> userData = new HashMap<String, String>();
+      userData.put(StaticPrior.COMMIT_KEY, prior.fingerprint());
+      if (shingles) {
+        userData.put(ShingleFields.COMMIT_KEY, String.valueOf(ShingleFields.SIZE));
+      }
+      if (snippets) {
+        userData.put(Snippets.COMMIT_KEY, "1");
+      }
+      profile.finish(writer, userData);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
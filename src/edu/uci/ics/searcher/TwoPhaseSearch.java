@@ -0,0 +1,250 @@
+package edu.uci.ics.searcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Two-phase search: a cheap first pass collects candidates, and only those
+ * are scored with the full ranking query.
+ * <p>
+ * The first pass is the disjunction of the term clauses of the text query,
+ * contents and title, without the phrase clauses and their position checks
+ * and without the static prior, so Lucene can score it out of order in
+ * bulk. Its top {@code -Dsearch.twoPhase.window} documents (0, the default,
+ * turns two-phase search off) are then scored with the ranking query,
+ * phrases and url and length boosts included, by advancing its scorer to
+ * each candidate. Scores are those of an exhaustive search, so the top hits
+ * are the same unless one of them was not a candidate; the recall check of
+ * {@link #main} measures how often that happens.
+ */
+class TwoPhaseSearch {
+
+  /** Number of candidates rescored, 0 to search exhaustively. */
+  static final int WINDOW = Integer.getInteger("search.twoPhase.window", 0);
+
+  private TwoPhaseSearch() {}
+
+  /** True if searches go through a first pass. */
+  static boolean isEnabled() {
+    return WINDOW > 0;
+  }
+
+  /**
+   * Search the top hits of a ranking query, rescoring a window of candidates.
+   *
+   * @param searcher The searcher
+   * @param textQuery The text query
+   * @param ranking The ranking query of the text query, see {@link StaticPrior#rankingQuery}
+   * @param k Number of hits
+   */
+  static TopDocs search(IndexSearcher searcher, Query textQuery, Query ranking, int k) throws IOException {
+    return search(searcher, textQuery, ranking, k, Math.max(WINDOW, k));
+  }
+
+  /**
+   * Search the top hits of a ranking query, rescoring a window of candidates.
+   *
+   * @param window Number of candidates of the first pass
+   */
+  static TopDocs search(IndexSearcher searcher, Query textQuery, Query ranking, int k, int window)
+      throws IOException {
+    Query firstPass = firstPassQuery(textQuery);
+    if (firstPass == null) {
+      // Nothing cheaper to run first
+      return searcher.search(ranking, k);
+    }
+    TopDocs candidates = searcher.search(firstPass, window);
+    SearchMetrics.Trace trace = SearchMetrics.current();
+    if (trace != null) trace.mark(SearchMetrics.Phase.SEARCH);
+
+    ScoreDoc[] hits = rescore(searcher, ranking, candidates.scoreDocs);
+    Arrays.sort(hits, BY_SCORE);
+    ScoreDoc[] top = hits.length > k ? Arrays.copyOf(hits, k) : hits;
+    float maxScore = top.length == 0 ? Float.NaN : top[0].score;
+    return new TopDocs(candidates.totalHits, top, maxScore);
+  }
+
+  /**
+   * The text query without its phrase clauses, or null if it is not a
+   * disjunction of term and phrase clauses with at least one of each.
+   */
+  static Query firstPassQuery(Query textQuery) {
+    if (!(textQuery instanceof BooleanQuery)) {
+      return null;
+    }
+    BooleanQuery firstPass = new BooleanQuery();
+    int phrases = 0;
+    for (BooleanClause clause : ((BooleanQuery) textQuery).getClauses()) {
+      if (clause.getOccur() != BooleanClause.Occur.SHOULD) {
+        // Candidates must be a superset of the matches
+        return null;
+      }
+      if (clause.getQuery() instanceof TermQuery) {
+        firstPass.add(clause);
+      } else if (clause.getQuery() instanceof PhraseQuery) {
+        phrases++;
+      } else {
+        return null;
+      }
+    }
+    if (firstPass.clauses().isEmpty() || phrases == 0) {
+      return null;
+    }
+    return firstPass;
+  }
+
+  /** Scores of the candidates for a query; those it does not match are left out. */
+  private static ScoreDoc[] rescore(IndexSearcher searcher, Query query, ScoreDoc[] candidates)
+      throws IOException {
+    ScoreDoc[] docs = candidates.clone();
+    Arrays.sort(docs, BY_DOC);
+    Weight weight = searcher.createNormalizedWeight(query);
+    List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+    List<ScoreDoc> scored = new ArrayList<ScoreDoc>(docs.length);
+    int i = 0;
+    while (i < docs.length) {
+      AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docs[i].doc, leaves));
+      int end = leaf.docBase + leaf.reader().maxDoc();
+      // In order, so the scorer only moves forward within the segment
+      Scorer scorer = weight.scorer(leaf, true, false, leaf.reader().getLiveDocs());
+      for (; i < docs.length && docs[i].doc < end; i++) {
+        if (scorer == null) continue;
+        int target = docs[i].doc - leaf.docBase;
+        int doc = scorer.docID() >= target ? scorer.docID() : scorer.advance(target);
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+          scorer = null;
+        } else if (doc == target) {
+          scored.add(new ScoreDoc(docs[i].doc, scorer.score()));
+        }
+      }
+    }
+    return scored.toArray(new ScoreDoc[scored.size()]);
+  }
+
+  private static final Comparator<ScoreDoc> BY_DOC = new Comparator<ScoreDoc>() {
+    public int compare(ScoreDoc a, ScoreDoc b) {
+      return a.doc < b.doc ? -1 : (a.doc == b.doc ? 0 : 1);
+    }
+  };
+
+  /** Best first, ties to the earlier document like an exhaustive search. */
+  private static final Comparator<ScoreDoc> BY_SCORE = new Comparator<ScoreDoc>() {
+    public int compare(ScoreDoc a, ScoreDoc b) {
+      int c = Float.compare(b.score, a.score);
+      return c != 0 ? c : BY_DOC.compare(a, b);
+    }
+  };
+
+  /** Recall check: compare the top hits of two-phase and exhaustive search over the oracle queries. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java edu.uci.ics.searcher.TwoPhaseSearch [-index INDEX_PATH] [-oracle DIR] [-k K]"
+        + " [-windows N,N,...] [-rounds N]\n\n"
+        + "Runs the queries of the oracle directory (one file per query) exhaustively and\n"
+        + "in two phases with every window size, and reports how many of the exhaustive top\n"
+        + "K hits two-phase search finds, how many queries keep the same top K, and the time\n"
+        + "of both.";
+    String index = SearchFiles.DEFAULT_INDEX;
+    String oracleDir = "query_results";
+    int k = 5;
+    String windows = "50,100,500,1000";
+    int rounds = 3;
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals(args[i])) {
+        index = args[++i];
+      } else if ("-oracle".equals(args[i])) {
+        oracleDir = args[++i];
+      } else if ("-k".equals(args[i])) {
+        k = Integer.parseInt(args[++i]);
+      } else if ("-windows".equals(args[i])) {
+        windows = args[++i];
+      } else if ("-rounds".equals(args[i])) {
+        rounds = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        System.exit(1);
+      }
+    }
+
+    List<String> queries = new ArrayList<String>(QueryIndex.loadOracle(oracleDir, k).keySet());
+    Collections.sort(queries);
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(index)));
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      for (String w : windows.split(",")) {
+        int window = Math.max(k, Integer.parseInt(w.trim()));
+        int found = 0;
+        int expected = 0;
+        int same = 0;
+        long twoPhaseNanos = 0;
+        long exhaustiveNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+          for (String q : queries) {
+            Query textQuery = SearchFiles.myBooleanQuery(reader, q);
+            Query ranking = StaticPrior.rankingQuery(reader, textQuery);
+            long t = System.nanoTime();
+            TopDocs exhaustive = searcher.search(ranking, k);
+            long t1 = System.nanoTime();
+            TopDocs twoPhase = search(searcher, textQuery, ranking, k, window);
+            long t2 = System.nanoTime();
+            if (round > 0) {
+              // The first round warms up
+              exhaustiveNanos += t1 - t;
+              twoPhaseNanos += t2 - t1;
+              continue;
+            }
+            Set<Integer> twoPhaseDocs = new HashSet<Integer>();
+            for (ScoreDoc hit : twoPhase.scoreDocs) {
+              twoPhaseDocs.add(hit.doc);
+            }
+            boolean sameTop = twoPhase.scoreDocs.length == exhaustive.scoreDocs.length;
+            for (int i = 0; i < exhaustive.scoreDocs.length; i++) {
+              expected++;
+              if (twoPhaseDocs.contains(exhaustive.scoreDocs[i].doc)) found++;
+              sameTop &= i < twoPhase.scoreDocs.length && twoPhase.scoreDocs[i].doc == exhaustive.scoreDocs[i].doc;
+            }
+            if (sameTop) {
+              same++;
+            } else {
+              System.out.println("Window " + window + " changed the top " + k + " of '" + q + "'");
+            }
+          }
+        }
+        StringBuilder line = new StringBuilder(String.format(
+            "Window %5d: recall@%d %.4f, %d of %d queries with the same top %d", window, k,
+            expected == 0 ? 1.0 : (double) found / expected, same, queries.size(), k));
+        if (rounds > 1) {
+          int n = (rounds - 1) * queries.size();
+          line.append(String.format("; mean latency %.3f ms two-phase, %.3f ms exhaustive",
+              twoPhaseNanos / 1e6 / n, exhaustiveNanos / 1e6 / n));
+        }
+        System.out.println(line);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
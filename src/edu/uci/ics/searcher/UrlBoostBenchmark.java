@@ -0,0 +1,103 @@
+package edu.uci.ics.searcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the compiled {@link UrlBoostRules} trie with the linear
+ * {@code if/else} chain of {@code url.indexOf(...)} checks it replaced,
+ * at 20, 1,000 and 100,000 rules.
+ */
+public class UrlBoostBenchmark {
+
+  private static final int NUM_URLS = 10000;
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+
+  /** Sink for results, so the JIT cannot drop the work. */
+  private static float sink;
+
+  public static void main(String[] args) {
+    int[] sizes = {20, 1000, 100000};
+    System.out.println("rules\tchain ns/url\ttrie ns/url");
+    for (int size : sizes) {
+      Random random = new Random(42);
+      List<UrlBoostRules.Rule> rules = makeRules(size, random);
+      String[] urls = makeUrls(rules, random);
+      UrlBoostRules trie = UrlBoostRules.compile(rules);
+
+      double chainNs = timeChain(rules, urls);
+      double trieNs = timeTrie(trie, urls);
+      System.out.println(String.format("%d\t%.1f\t%.1f", size, chainNs, trieNs));
+    }
+  }
+
+  /** Rules shaped like the real ones: a few exact urls and many path prefixes. */
+  private static List<UrlBoostRules.Rule> makeRules(int size, Random random) {
+    List<UrlBoostRules.Rule> rules = new ArrayList<UrlBoostRules.Rule>();
+    for (int i = 0; i < size; i++) {
+      String pattern = "http://host" + random.nextInt(size) + ".ics.uci.edu/dir" + i + "/";
+      UrlBoostRules.Type type = (i % 4 == 0) ? UrlBoostRules.Type.EXACT : UrlBoostRules.Type.PREFIX;
+      rules.add(new UrlBoostRules.Rule(type, pattern, 1 + random.nextInt(3), false));
+    }
+    return rules;
+  }
+
+  /** Half of the urls hit some rule, the others hit none. */
+  private static String[] makeUrls(List<UrlBoostRules.Rule> rules, Random random) {
+    String[] urls = new String[NUM_URLS];
+    for (int i = 0; i < NUM_URLS; i++) {
+      if (i % 2 == 0) {
+        UrlBoostRules.Rule rule = rules.get(random.nextInt(rules.size()));
+        urls[i] = rule.type == UrlBoostRules.Type.EXACT ? rule.pattern : rule.pattern + "page" + i + ".html";
+      } else {
+        urls[i] = "http://www.ics.uci.edu/~someone/page" + i + ".html";
+      }
+    }
+    return urls;
+  }
+
+  /** The old way: test every rule in order until one matches. */
+  private static float chainMultiplier(List<UrlBoostRules.Rule> rules, String url) {
+    for (int i = 0; i < rules.size(); i++) {
+      UrlBoostRules.Rule rule = rules.get(i);
+      if (rule.type == UrlBoostRules.Type.EXACT) {
+        if (url.equals(rule.pattern)) {
+          return rule.multiplier;
+        }
+      } else if (url.indexOf(rule.pattern) >= 0) {
+        return rule.multiplier;
+      }
+    }
+    return 1.0f;
+  }
+
+  private static double timeChain(List<UrlBoostRules.Rule> rules, String[] urls) {
+    // The chain is far too slow to run every url at 100,000 rules
+    int step = Math.max(1, rules.size() / 1000);
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      for (int i = 0; i < urls.length; i += step) sink += chainMultiplier(rules, urls[i]);
+    }
+    long start = System.nanoTime();
+    int count = 0;
+    for (int r = 0; r < ROUNDS; r++) {
+      for (int i = 0; i < urls.length; i += step) {
+        sink += chainMultiplier(rules, urls[i]);
+        count++;
+      }
+    }
+    return (System.nanoTime() - start) / (double) count;
+  }
+
+  private static double timeTrie(UrlBoostRules trie, String[] urls) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      for (String url : urls) sink += trie.multiplier(url);
+    }
+    long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      for (String url : urls) sink += trie.multiplier(url);
+    }
+    return (System.nanoTime() - start) / (double) (ROUNDS * urls.length);
+  }
+}
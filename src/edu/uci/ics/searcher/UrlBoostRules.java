@@ -0,0 +1,311 @@
+package edu.uci.ics.searcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Url boost rules, loaded from a config file and compiled into a prefix trie.
+ * <p>
+ * Matching a url walks the trie once, so it costs O(url length) no matter how
+ * many rules there are. A url takes the multiplier of its exact rule if there
+ * is one, otherwise of the longest matching prefix rule, otherwise of the rule
+ * for its host. See {@code url_boosts.txt} for the file format.
+ * <p>
+ * The rules in use are returned by {@link #current()}, which reloads the
+ * file when it changes, so rules can be edited without reopening the index.
+ */
+public class UrlBoostRules {
+
+  /** Default rules file. */
+  public static final String DEFAULT_FILE = "url_boosts.txt";
+
+  /** Minimum time between two checks of the rules file. */
+  private static final long CHECK_INTERVAL_MS = 2000;
+
+  private static final AtomicLong versions = new AtomicLong();
+
+  private static File file = new File(DEFAULT_FILE);
+  private static volatile UrlBoostRules current;
+  private static long fileModified;
+  private static volatile long lastChecked;
+
+  enum Type { EXACT, PREFIX, HOST }
+
+  /** A single rule. */
+  static class Rule {
+    final Type type;
+    final String pattern;
+    final float multiplier;
+    final boolean noLengthPenalty;
+
+    Rule(Type type, String pattern, float multiplier, boolean noLengthPenalty) {
+      this.type = type;
+      this.pattern = pattern;
+      this.multiplier = multiplier;
+      this.noLengthPenalty = noLengthPenalty;
+    }
+
+    @Override
+    public String toString() {
+      return type.name().toLowerCase() + " " + pattern + " " + multiplier
+          + (noLengthPenalty ? " nolengthpenalty" : "");
+    }
+  }
+
+  /** Trie node, children are kept sorted by label for binary search. */
+  private static final class Node {
+    char[] labels = new char[0];
+    Node[] children = new Node[0];
+    Rule exact;
+    Rule prefix;
+
+    Node child(char c) {
+      int i = Arrays.binarySearch(labels, c);
+      return i >= 0 ? children[i] : null;
+    }
+
+    Node addChild(char c) {
+      int i = Arrays.binarySearch(labels, c);
+      if (i >= 0) {
+        return children[i];
+      }
+      int at = -i - 1;
+      char[] newLabels = new char[labels.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(labels, 0, newLabels, 0, at);
+      System.arraycopy(children, 0, newChildren, 0, at);
+      System.arraycopy(labels, at, newLabels, at + 1, labels.length - at);
+      System.arraycopy(children, at, newChildren, at + 1, children.length - at);
+      Node node = new Node();
+      newLabels[at] = c;
+      newChildren[at] = node;
+      labels = newLabels;
+      children = newChildren;
+      return node;
+    }
+  }
+
+  private final Node root = new Node();
+  private final Map<String, Rule> hosts = new HashMap<String, Rule>();
+  private final List<Rule> rules;
+  private final long version;
+  private volatile String fingerprint;
+
+  private UrlBoostRules(List<Rule> rules) {
+    this.rules = rules;
+    this.version = versions.incrementAndGet();
+    for (Rule rule : rules) {
+      if (rule.type == Type.HOST) {
+        hosts.put(rule.pattern.toLowerCase(), rule);
+        continue;
+      }
+      Node node = root;
+      for (int i = 0; i < rule.pattern.length(); i++) {
+        node = node.addChild(rule.pattern.charAt(i));
+      }
+      if (rule.type == Type.EXACT) {
+        node.exact = rule;
+      } else {
+        node.prefix = rule;
+      }
+    }
+  }
+
+  /** Compile a list of rules. Later rules replace earlier ones with the same type and pattern. */
+  static UrlBoostRules compile(List<Rule> rules) {
+    return new UrlBoostRules(rules);
+  }
+
+  /**
+   * The rules in use, reloading the rules file if it changed since the last
+   * check. The file is checked at most once every few seconds.
+   */
+  public static UrlBoostRules current() {
+    long now = System.currentTimeMillis();
+    if (current == null || now - lastChecked > CHECK_INTERVAL_MS) {
+      reloadIfModified();
+    }
+    return current;
+  }
+
+  /** Use another rules file from now on. */
+  public static synchronized void setFile(String path) {
+    file = new File(path);
+    fileModified = 0;
+    reloadIfModified();
+  }
+
+  /**
+   * Reload the rules file if it changed. If the file is missing or cannot be
+   * read, the rules in use are kept (no rules at all on first load).
+   *
+   * @return true if new rules were loaded
+   */
+  public static synchronized boolean reloadIfModified() {
+    lastChecked = System.currentTimeMillis();
+    long modified = file.lastModified();
+    if (current != null && modified == fileModified) {
+      return false;
+    }
+    try {
+      UrlBoostRules rules = load(file);
+      fileModified = modified;
+      current = rules;
+      System.err.println("Loaded " + rules.size() + " url boost rules from " + file.getPath());
+      return true;
+    } catch (IOException e) {
+      System.err.println("Cannot load url boost rules from " + file.getPath() + ": " + e.getMessage());
+      if (current == null) {
+        current = compile(new ArrayList<Rule>());
+      }
+      return false;
+    }
+  }
+
+  /** Load and compile a rules file. */
+  public static UrlBoostRules load(File file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      return compile(parse(in, file.getPath()));
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Parse rules, skipping (and reporting) malformed lines. */
+  static List<Rule> parse(Reader in, String source) throws IOException {
+    List<Rule> rules = new ArrayList<Rule>();
+    BufferedReader br = new BufferedReader(in);
+    String line;
+    int lineNo = 0;
+    while ((line = br.readLine()) != null) {
+      lineNo++;
+      String tline = line.trim();
+      if (tline.length() == 0 || tline.startsWith("#")) continue;
+
+      String[] tokens = tline.split("\\s+");
+      try {
+        if (tokens.length < 3 || tokens.length > 4) {
+          throw new IllegalArgumentException("expected <type> <pattern> <multiplier> [nolengthpenalty]");
+        }
+        Type type = Type.valueOf(tokens[0].toUpperCase());
+        float multiplier = parseMultiplier(tokens[2]);
+        boolean noLengthPenalty = false;
+        if (tokens.length == 4) {
+          if (!"nolengthpenalty".equals(tokens[3])) {
+            throw new IllegalArgumentException("unknown option " + tokens[3]);
+          }
+          noLengthPenalty = true;
+        }
+        rules.add(new Rule(type, tokens[1], multiplier, noLengthPenalty));
+      } catch (IllegalArgumentException e) {
+        System.err.println(source + ":" + lineNo + ": skipping rule, " + e.getMessage());
+      }
+    }
+    return rules;
+  }
+
+  /** A multiplier or a divisor ({@code /N}); scores stay positive, so it must be positive and finite. */
+  private static float parseMultiplier(String s) {
+    float multiplier = s.startsWith("/") ? 1.0f / Float.parseFloat(s.substring(1)) : Float.parseFloat(s);
+    if (!(multiplier > 0) || Float.isInfinite(multiplier)) {
+      throw new IllegalArgumentException("multiplier " + s + " is not positive and finite");
+    }
+    return multiplier;
+  }
+
+  /**
+   * Find the rule of a url.
+   *
+   * @return The matching rule, or null if no rule applies
+   */
+  Rule match(String url) {
+    Rule best = null;
+    Node node = root;
+    int len = url.length();
+    for (int i = 0; i < len && node != null; i++) {
+      if (node.prefix != null) {
+        best = node.prefix;
+      }
+      node = node.child(url.charAt(i));
+    }
+    if (node != null) {
+      // The whole url was consumed
+      if (node.exact != null) {
+        return node.exact;
+      }
+      if (node.prefix != null) {
+        best = node.prefix;
+      }
+    }
+    if (best != null || hosts.isEmpty()) {
+      return best;
+    }
+    return hosts.get(hostOf(url));
+  }
+
+  /** Multiplier of a url, 1 if no rule applies. */
+  public float multiplier(String url) {
+    Rule rule = match(url);
+    return rule == null ? 1.0f : rule.multiplier;
+  }
+
+  /** Lower-cased host of a url, without port. */
+  static String hostOf(String url) {
+    int start = url.indexOf("://");
+    start = start < 0 ? 0 : start + 3;
+    int end = start;
+    while (end < url.length()) {
+      char c = url.charAt(end);
+      if (c == '/' || c == ':' || c == '?' || c == '#') break;
+      end++;
+    }
+    return url.substring(start, end).toLowerCase();
+  }
+
+  /** Number of rules. */
+  public int size() {
+    return rules.size();
+  }
+
+  /** Increases every time rules are compiled, so caches can tell stale results apart. */
+  public long getVersion() {
+    return version;
+  }
+
+  List<Rule> getRules() {
+    return rules;
+  }
+
+  /**
+   * Hex MD5 of the rules, the same for the same rules in the same order
+   * whenever and wherever they are loaded (unlike {@link #getVersion()}).
+   */
+  public String fingerprint() {
+    String f = fingerprint;
+    if (f == null) {
+      StringBuilder sb = new StringBuilder();
+      for (Rule rule : rules) {
+        sb.append(rule).append('\n');
+      }
+      try {
+        f = IndexManifest.hash(sb.toString().getBytes("UTF-8"), "");
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+      fingerprint = f;
+    }
+    return f;
+  }
+}